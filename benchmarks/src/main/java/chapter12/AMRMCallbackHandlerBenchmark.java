@@ -0,0 +1,217 @@
+package chapter12;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerState;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+import org.apache.hadoop.yarn.util.RackResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AMRM回调线程上onContainersAllocated和onContainersCompleted的簿记开销，每次调用前构建一个新的handler和一批合成的Container，
+ * 每个Container在不同的节点上。AMRMClient使用未启动的真实实现，只在内存里维护请求表，
+ * 启动和停止Container的NM调用被替换为空操作，所以只统计回调线程本身的耗时，不包括启动线程池
+ *
+ * @author 徐洁阳
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AMRMCallbackHandlerBenchmark {
+    private static final Resource CAPABILITY = Resource.newInstance(4096, 2);
+    private static final Priority PRIORITY = Priority.newInstance(0);
+    private static final DrillbitProfile PROFILE = new DrillbitProfile(DrillbitProfile.DEFAULT_NAME, CAPABILITY, PRIORITY,
+            0, 0, null, Collections.<String>emptySet(), Collections.<String, String>emptyMap());
+
+    @Param({"10", "100", "1000", "10000"})
+    private int batch;
+
+    private PrintStream stdout;
+    private ApplicationAttemptId attemptId;
+    private long nextContainerId;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        RackResolver.init(new Configuration());
+        attemptId = ApplicationAttemptId.newInstance(ApplicationId.newInstance(System.currentTimeMillis(), 1), 1);
+        // 回调里的日志仍然会格式化，只是不输出到控制台
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * 目标为batch个drillbit、已经发出batch个请求的handler，以及与请求一一对应的Container
+     */
+    @State(Scope.Thread)
+    public static class Allocation {
+        private AMRMCallbackHandler handler;
+        private List<Container> containers;
+
+        @Setup(Level.Invocation)
+        public void setup(AMRMCallbackHandlerBenchmark benchmark) {
+            handler = newHandler();
+            handler.resize(benchmark.batch);
+            containers = new ArrayList<>(benchmark.batch);
+            for (int i = 0; i < benchmark.batch; i++) {
+                ContainerId containerId = ContainerId.newContainerId(benchmark.attemptId, ++benchmark.nextContainerId);
+                containers.add(Container.newInstance(containerId, NodeId.newInstance(host(i), 45454), host(i) + ":8042",
+                        CAPABILITY, PRIORITY, null));
+            }
+        }
+    }
+
+    /**
+     * 分配完成后缩容到0，batch个Container依次退出
+     */
+    @State(Scope.Thread)
+    public static class Completion {
+        private AMRMCallbackHandler handler;
+        private List<ContainerStatus> statuses;
+
+        @Setup(Level.Invocation)
+        public void setup(AMRMCallbackHandlerBenchmark benchmark) {
+            Allocation allocation = new Allocation();
+            allocation.setup(benchmark);
+            handler = allocation.handler;
+            handler.onContainersAllocated(allocation.containers);
+            handler.resize(0);
+            statuses = new ArrayList<>(benchmark.batch);
+            for (Container container : allocation.containers) {
+                statuses.add(ContainerStatus.newInstance(container.getId(), ContainerState.COMPLETE,
+                        "Container killed by the ApplicationMaster.", ContainerExitStatus.KILLED_BY_APPMASTER));
+            }
+        }
+    }
+
+    @Benchmark
+    public AMRMCallbackHandler onContainersAllocated(Allocation allocation) {
+        allocation.handler.onContainersAllocated(allocation.containers);
+        return allocation.handler;
+    }
+
+    @Benchmark
+    public AMRMCallbackHandler onContainersCompleted(Completion completion) {
+        completion.handler.onContainersCompleted(completion.statuses);
+        return completion.handler;
+    }
+
+    /**
+     * 用IP作为节点名，RackResolver解析时不会做DNS查询
+     */
+    private static String host(int i) {
+        return "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+    }
+
+    private static AMRMCallbackHandler newHandler() {
+        AMRMCallbackHandler handler = new AMRMCallbackHandler();
+        AMMetrics metrics = new AMMetrics();
+        handler.setMetrics(metrics);
+        handler.setProfiles(Collections.singletonList(PROFILE));
+
+        AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync =
+                AMRMClientAsync.createAMRMClientAsync(AMRMClient.<AMRMClient.ContainerRequest>createAMRMClient(), 500, handler);
+        NMClientAsync nmClientAsync = new NoopNMClientAsync();
+        handler.setAmrmClientAsync(amrmClientAsync);
+        handler.setNmClientAsync(nmClientAsync);
+        handler.setHeartbeatController(new HeartbeatController(amrmClientAsync, new Properties(), 500, metrics));
+        handler.setContainerRequester(new SyntheticRequester(amrmClientAsync));
+        handler.setContainerLauncher(new ContainerLauncher(nmClientAsync, handler, null, 1, 1, metrics) {
+            @Override
+            public void launch(Container container, ContainerInfo containerInfo) {
+            }
+        });
+        return handler;
+    }
+
+    /**
+     * 不访问RM，直接依次挑选没有被使用的合成节点
+     */
+    private static class SyntheticRequester extends ContainerRequester {
+        private final AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync;
+
+        private SyntheticRequester(AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync) {
+            super(amrmClientAsync, null, null);
+            this.amrmClientAsync = amrmClientAsync;
+        }
+
+        @Override
+        public List<AMRMClient.ContainerRequest> request(DrillbitProfile profile, int count, Set<String> excludedHosts) {
+            List<AMRMClient.ContainerRequest> containerRequests = new ArrayList<>(count);
+            for (int i = 0; containerRequests.size() < count; i++) {
+                if (!excludedHosts.contains(host(i))) {
+                    AMRMClient.ContainerRequest containerRequest = new AMRMClient.ContainerRequest(CAPABILITY,
+                            new String[] {host(i)}, null, PRIORITY, false);
+                    amrmClientAsync.addContainerRequest(containerRequest);
+                    containerRequests.add(containerRequest);
+                }
+            }
+            return containerRequests;
+        }
+    }
+
+    private static class NoopNMClientAsync extends NMClientAsync {
+        private NoopNMClientAsync() {
+            super("NoopNMClientAsync", null, null);
+        }
+
+        @Override
+        public void startContainerAsync(Container container, ContainerLaunchContext containerLaunchContext) {
+        }
+
+        @Override
+        public void stopContainerAsync(ContainerId containerId, NodeId nodeId) {
+        }
+
+        @Override
+        public void getContainerStatusAsync(ContainerId containerId, NodeId nodeId) {
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package chapter12;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.yarn.api.records.ApplicationReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.server.MiniYARNCluster;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 在本机的MiniDFSCluster和MiniYARNCluster(nodes个NodeManager)上用真实的DrillOnYarnClient启动集群，
+ * drillbit.sh替换为只写时间戳的脚本：进程启动(本地化完成)时写started，等待init.ms后写ready，
+ * 统计upload、submit、amStart、allocation、launch、localization、ready各阶段耗时，结果写入JSON文件。
+ * 需要在Linux和JDK 8上运行，参数为key=value，如 nodes=4 drillbits=4 init.ms=1000 output=cluster-ready.json
+ *
+ * @author 徐洁阳
+ */
+public class ClusterReadyBenchmark {
+    private static final String ARCHIVE_NAME = "fake-drill";
+
+    public static void main(String[] args) {
+        int status = 0;
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = -1;
+        }
+        // MiniDFSCluster和MiniYARNCluster停止后仍会残留非守护线程
+        System.exit(status);
+    }
+
+    private static void run(String[] args) throws Exception {
+        Properties options = new Properties();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length == 2) {
+                options.setProperty(option[0], option[1]);
+            }
+        }
+        int nodes = Integer.parseInt(options.getProperty("nodes", "3"));
+        int drillbits = Integer.parseInt(options.getProperty("drillbits", String.valueOf(nodes)));
+        long initMillis = Long.parseLong(options.getProperty("init.ms", "1000"));
+        long timeout = Long.parseLong(options.getProperty("timeout", "300")) * 1000;
+        File workDir = new File(options.getProperty("work.dir", "target/cluster-ready")).getAbsoluteFile();
+        File output = new File(options.getProperty("output", "cluster-ready.json"));
+
+        FileUtils.deleteQuietly(workDir);
+        File markerDir = new File(workDir, "markers");
+        File confDir = new File(workDir, "conf");
+        markerDir.mkdirs();
+        confDir.mkdirs();
+
+        Configuration conf = new YarnConfiguration();
+        conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(workDir, "dfs").getPath());
+        conf.setInt(YarnConfiguration.RM_SCHEDULER_MINIMUM_ALLOCATION_MB, 64);
+        conf.setInt(YarnConfiguration.NM_PMEM_MB, 4096);
+        conf.setInt(YarnConfiguration.NM_VCORES, 8);
+        conf.setBoolean(YarnConfiguration.NM_PMEM_CHECK_ENABLED, false);
+        conf.setBoolean(YarnConfiguration.NM_VMEM_CHECK_ENABLED, false);
+
+        MiniDFSCluster dfsCluster = null;
+        MiniYARNCluster yarnCluster = null;
+        YarnClient yarnClient = null;
+        try {
+            dfsCluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+            dfsCluster.waitActive();
+            // MiniYARNCluster的目录是target/<名字>，启动时会被清空
+            yarnCluster = new MiniYARNCluster(ClusterReadyBenchmark.class.getSimpleName(), nodes, 1, 1);
+            yarnCluster.init(conf);
+            yarnCluster.start();
+            Configuration clusterConf = yarnCluster.getConfig();
+            writeConf(clusterConf, new File(confDir, "core-site.xml"));
+            writeConf(clusterConf, new File(confDir, "yarn-site.xml"));
+
+            yarnClient = YarnUtil.initYarnClient(clusterConf);
+            while (yarnClient.getNodeReports(NodeState.RUNNING).size() < nodes) {
+                Thread.sleep(100);
+            }
+            File archive = buildFakeDrill(workDir, confDir, markerDir, initMillis);
+
+            long startTime = System.currentTimeMillis();
+            DrillOnYarnClient client = new DrillOnYarnClient();
+            ToolRunner.run(new Configuration(clusterConf), client, new String[] {"start",
+                    "drill.path=" + archive.getPath(),
+                    "drill.archive.name=" + ARCHIVE_NAME,
+                    "fs.upload.dir=/drill-on-yarn/",
+                    "app.name=cluster-ready",
+                    "am.memory=256",
+                    "container.memory=128",
+                    "container.vCores=1",
+                    "containers.num=" + drillbits,
+                    // 所有NodeManager在同一台机器上，按主机限制并发启动会把启动串行化
+                    "launcher.node.concurrency=" + drillbits,
+                    // 假的drillbit不监听端口，就绪时间由ready标记给出
+                    "probe.enabled=false",
+                    // 128M的Container放不下内存划分要求的最小堆和直接内存，假的drillbit也用不到
+                    "memory.partition.enabled=false",
+                    "placement.policy=" + options.getProperty("placement.policy", ResourceAwarePlacement.class.getName())});
+            if (client.getApplicationId() == null || !client.getPhaseTimes().containsKey("amStart")) {
+                throw new RuntimeException("application master not started");
+            }
+
+            ApplicationReport report = yarnClient.getApplicationReport(client.getApplicationId());
+            List<Map<String, Object>> containers = awaitReady(new AMClient(report), markerDir, drillbits,
+                    startTime + timeout);
+            Map<String, Object> result = buildResult(startTime, client.getPhaseTimes(), containers);
+
+            Map<String, Object> config = new LinkedHashMap<>();
+            config.put("nodes", nodes);
+            config.put("drillbits", drillbits);
+            config.put("initMillis", initMillis);
+            config.put("java", System.getProperty("java.version"));
+            result.put("config", config);
+            String json = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(result);
+            FileUtils.writeStringToFile(output, json, StandardCharsets.UTF_8);
+            System.out.println(json);
+
+            yarnClient.killApplication(client.getApplicationId());
+        } finally {
+            if (yarnClient != null) {
+                yarnClient.close();
+            }
+            if (yarnCluster != null) {
+                yarnCluster.stop();
+            }
+            if (dfsCluster != null) {
+                dfsCluster.shutdown();
+            }
+        }
+    }
+
+    private static void writeConf(Configuration conf, File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            conf.writeXml(out);
+        }
+    }
+
+    /**
+     * 生成fake-drill.tar.gz：drill-am.sh用当前JVM的classpath启动真实的AM，drillbit.sh只写started和ready标记
+     */
+    private static File buildFakeDrill(File workDir, File confDir, File markerDir, long initMillis)
+            throws IOException, InterruptedException {
+        File binDir = new File(workDir, ARCHIVE_NAME + "/bin");
+        binDir.mkdirs();
+        StringBuilder classpath = new StringBuilder(confDir.getPath());
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classpath.append(File.pathSeparator).append(new File(entry).getAbsolutePath());
+        }
+        writeScript(new File(binDir, "drill-am.sh"), "#!/bin/bash\n"
+                + "exec \"" + System.getProperty("java.home") + "/bin/java\" -Xmx256m -cp \"" + classpath
+                + "\" chapter12.DrillOnYarnAM\n");
+        writeScript(new File(binDir, "drillbit.sh"), "#!/bin/bash\n"
+                + "date +%s%3N > \"" + markerDir + "/$CONTAINER_ID.started\"\n"
+                + "sleep " + String.format("%.3f", initMillis / 1000.0) + "\n"
+                + "date +%s%3N > \"" + markerDir + "/$CONTAINER_ID.ready\"\n"
+                + "trap 'exit 0' TERM\n"
+                + "while true; do sleep 1; done\n");
+
+        File archive = new File(workDir, ARCHIVE_NAME + ".tar.gz");
+        Process tar = new ProcessBuilder("tar", "czf", archive.getPath(), "-C", workDir.getPath(), ARCHIVE_NAME)
+                .inheritIO().start();
+        if (tar.waitFor() != 0) {
+            throw new IOException("create " + archive + " error");
+        }
+        return archive;
+    }
+
+    private static void writeScript(File file, String content) throws IOException {
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+        file.setExecutable(true);
+    }
+
+    /**
+     * 长轮询AM的/status直到drillbits个Container都写了ready标记，返回每个Container的时间戳
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> awaitReady(AMClient amClient, File markerDir, int drillbits, long deadline)
+            throws IOException, InterruptedException {
+        long version = -1;
+        while (System.currentTimeMillis() < deadline) {
+            Map<String, Object> status = amClient.request("GET", "/status?version=" + version + "&wait=1000", 10000);
+            version = ((Number) status.get("version")).longValue();
+            List<Map<String, Object>> containers = new ArrayList<>();
+            for (Map<String, Object> drillbit : (List<Map<String, Object>>) status.get("drillbits")) {
+                String containerId = (String) drillbit.get("containerId");
+                File started = new File(markerDir, containerId + ".started");
+                File ready = new File(markerDir, containerId + ".ready");
+                if (!"ready".equals(drillbit.get("state")) || !ready.isFile()) {
+                    continue;
+                }
+                Map<String, Object> container = new LinkedHashMap<>(drillbit);
+                container.put("localizedTime", readMarker(started));
+                container.put("readyTime", readMarker(ready));
+                containers.add(container);
+            }
+            if (containers.size() >= drillbits) {
+                return containers;
+            }
+        }
+        throw new RuntimeException("drillbits not ready in time");
+    }
+
+    private static long readMarker(File marker) throws IOException {
+        return Long.parseLong(FileUtils.readFileToString(marker, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * 集群级别的阶段取最后一个drillbit到达各里程碑的时间，另外给出每个drillbit各阶段耗时的分布
+     */
+    private static Map<String, Object> buildResult(long startTime, Map<String, Long> phaseTimes,
+                                                   List<Map<String, Object>> containers) {
+        long allocated = latest(containers, "allocateTime");
+        long launched = latest(containers, "launchTime");
+        long localized = latest(containers, "localizedTime");
+        long ready = latest(containers, "readyTime");
+
+        Map<String, Object> phases = new LinkedHashMap<>();
+        phases.put("upload", phaseTimes.get("upload") - startTime);
+        phases.put("submit", phaseTimes.get("submit") - phaseTimes.get("upload"));
+        phases.put("amStart", phaseTimes.get("amStart") - phaseTimes.get("submit"));
+        phases.put("allocation", allocated - phaseTimes.get("amStart"));
+        phases.put("launch", launched - allocated);
+        phases.put("localization", localized - launched);
+        phases.put("ready", ready - localized);
+        phases.put("total", ready - startTime);
+
+        Map<String, Object> perDrillbit = new LinkedHashMap<>();
+        perDrillbit.put("allocationToLaunch", distribution(containers, "allocateTime", "launchTime"));
+        perDrillbit.put("launchToStarted", distribution(containers, "launchTime", "startTime"));
+        perDrillbit.put("launchToLocalized", distribution(containers, "launchTime", "localizedTime"));
+        perDrillbit.put("localizedToReady", distribution(containers, "localizedTime", "readyTime"));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("startTime", startTime);
+        result.put("phasesMillis", phases);
+        result.put("perDrillbitMillis", perDrillbit);
+        result.put("drillbits", containers);
+        return result;
+    }
+
+    private static long latest(List<Map<String, Object>> containers, String key) {
+        long latest = 0;
+        for (Map<String, Object> container : containers) {
+            latest = Math.max(latest, ((Number) container.get(key)).longValue());
+        }
+        return latest;
+    }
+
+    private static Map<String, Object> distribution(List<Map<String, Object>> containers, String from, String to) {
+        List<Long> durations = new ArrayList<>();
+        for (Map<String, Object> container : containers) {
+            durations.add(((Number) container.get(to)).longValue() - ((Number) container.get(from)).longValue());
+        }
+        Collections.sort(durations);
+        Map<String, Object> distribution = new LinkedHashMap<>();
+        distribution.put("min", durations.get(0));
+        distribution.put("p50", durations.get(durations.size() / 2));
+        distribution.put("max", durations.get(durations.size() - 1));
+        return distribution;
+    }
+}
@@ -0,0 +1,26 @@
+package chapter12;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 运行全部基准测试：默认加上gc profiler统计每次操作的分配字节数和分配速率，结果写入jmh-result.json，
+ * 命令行参数和JMH相同，例如 -p batch=10000 AMRMCallbackHandlerBenchmark
+ *
+ * @author 徐洁阳
+ */
+public class DrillOnYarnBenchmarks {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+}
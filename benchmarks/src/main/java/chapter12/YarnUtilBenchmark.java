@@ -0,0 +1,74 @@
+package chapter12;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端提交应用和AM构建drillbit启动上下文时的工具方法，配置校验使用打包在主工程里的config.properties
+ *
+ * @author 徐洁阳
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YarnUtilBenchmark {
+    private YarnConfiguration yarnConfig;
+    private FileStatus fileStatus;
+    private Properties config;
+
+    @Setup
+    public void setup() throws IOException {
+        yarnConfig = new YarnConfiguration();
+        fileStatus = new FileStatus(512L * 1024 * 1024, false, 3, 128L * 1024 * 1024, System.currentTimeMillis(),
+                new Path("hdfs://namenode:8020/user/drill/apache-drill-1.12.0.tar.gz"));
+        config = new Properties();
+        config.load(new InputStreamReader(getClass().getResourceAsStream("/chapter12/config.properties"),
+                StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Map<String, String> buildCommonEnvironment() {
+        return YarnUtil.buildCommonEnvironment(yarnConfig);
+    }
+
+    @Benchmark
+    public Map<String, LocalResource> buildResource() {
+        return YarnUtil.buildResource(fileStatus, LocalResourceType.ARCHIVE, LocalResourceVisibility.PUBLIC);
+    }
+
+    @Benchmark
+    public List<String> buildCommand() {
+        return YarnUtil.buildCommand("apache-drill-1.12.0.tar.gz/apache-drill-1.12.0/bin/drillbit.sh run");
+    }
+
+    @Benchmark
+    public Properties validateConfig() {
+        DrillOnYarnConfig.validate(config);
+        return config;
+    }
+}
@@ -0,0 +1,77 @@
+package chapter12;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.yarn.api.records.ApplicationReport;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 客户端访问AM内嵌HTTP服务的工具，AM的地址取自ApplicationReport中注册的host和端口，
+ * 修改集群的请求需要带上提交时生成的AM密钥
+ *
+ * @author 徐洁阳
+ */
+public class AMClient {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String baseUrl;
+    private final String secret;
+
+    public AMClient(String baseUrl, String secret) {
+        this.baseUrl = baseUrl;
+        this.secret = secret;
+    }
+
+    /**
+     * 只能发送GET请求
+     */
+    public AMClient(ApplicationReport report) {
+        this(report, null);
+    }
+
+    public AMClient(ApplicationReport report, String secret) {
+        this("http://" + report.getHost() + ":" + report.getRpcPort(), secret);
+    }
+
+    public Map<String, Object> get(String path) {
+        return request("GET", path, 10000);
+    }
+
+    public Map<String, Object> post(String path) {
+        return request("POST", path, 10000);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> request(String method, String path, int readTimeout) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(readTimeout);
+            if (secret != null) {
+                connection.setRequestProperty(AMHttpServer.SECRET_HEADER, secret);
+            }
+            int code = connection.getResponseCode();
+            InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            String body = in == null ? "{}" : IOUtils.toString(in, StandardCharsets.UTF_8);
+            Map<String, Object> result = MAPPER.readValue(body, Map.class);
+            if (code >= 400) {
+                throw new RuntimeException(method + " " + path + " failed with " + code + ", " + result.get("error"));
+            }
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(method + " " + baseUrl + path + " error", e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * AM内嵌的HTTP服务，客户端通过它和运行中的AM交互，地址在注册AM时上报给RM。
+ * 只监听AM注册的主机地址，GET以外的请求必须在SECRET_HEADER中带上客户端提交时生成的密钥；
+ * 长轮询在单独的线程池上等待，不占用处理其他请求的线程
+ *
+ * @author 徐洁阳
+ */
+public class AMHttpServer {
+    /**
+     * 修改集群的请求携带AM密钥的请求头
+     */
+    public static final String SECRET_HEADER = "X-Drill-AM-Secret";
+    /**
+     * 排队等待长轮询线程的请求上限，超过后返回503
+     */
+    private static final int LONG_POLL_QUEUE = 64;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final byte[] secret;
+    private final ExecutorService longPollExecutor;
+
+    /**
+     * 处理一个HTTP请求，返回值序列化成JSON作为响应
+     */
+    public interface Handler {
+        Object handle(String method, Map<String, String> params) throws Exception;
+    }
+
+    /**
+     * secret为null时拒绝所有GET以外的请求
+     */
+    public AMHttpServer(String host, int port, int threads, int longPollThreads, String secret) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            throw new RuntimeException("create am http server error", e);
+        }
+        this.secret = secret == null ? null : secret.getBytes(StandardCharsets.UTF_8);
+        server.setExecutor(Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("am-http-%d").setDaemon(true).build()));
+        longPollExecutor = new ThreadPoolExecutor(longPollThreads, longPollThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LONG_POLL_QUEUE),
+                new ThreadFactoryBuilder().setNameFormat("am-http-poll-%d").setDaemon(true).build());
+    }
+
+    public void addHandler(String path, final Handler handler) {
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, handler);
+            }
+        });
+    }
+
+    /**
+     * 可能长时间等待的请求，在长轮询线程池上处理，线程和队列都满时返回503
+     */
+    public void addLongPollHandler(String path, final Handler handler) {
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    longPollExecutor.execute(() -> {
+                        try {
+                            respond(exchange, handler);
+                        } catch (IOException e) {
+                            exchange.close();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    write(exchange, 503, MAPPER.writeValueAsBytes(
+                            Collections.singletonMap("error", "too many long polls, retry later")), "application/json");
+                }
+            }
+        });
+    }
+
+    public void addTextHandler(String path, final Supplier<String> handler) {
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!authorized(exchange)) {
+                    write(exchange, 403, "forbidden".getBytes(StandardCharsets.UTF_8), "text/plain");
+                    return;
+                }
+                write(exchange, 200, handler.get().getBytes(StandardCharsets.UTF_8), "text/plain; version=0.0.4");
+            }
+        });
+    }
+
+    private void respond(HttpExchange exchange, Handler handler) throws IOException {
+        int code = 200;
+        Object body;
+        if (!authorized(exchange)) {
+            EventLog.warn("am.http.forbidden").with("method", exchange.getRequestMethod())
+                    .with("path", exchange.getRequestURI().getPath()).with("remote", exchange.getRemoteAddress()).log();
+            code = 403;
+            body = Collections.singletonMap("error", exchange.getRequestMethod() + " requires a valid " + SECRET_HEADER + " header");
+        } else {
+            try {
+                body = handler.handle(exchange.getRequestMethod(), parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                code = 400;
+                body = Collections.singletonMap("error", String.valueOf(e.getMessage()));
+            } catch (Exception e) {
+                code = 500;
+                body = Collections.singletonMap("error", String.valueOf(e.getMessage()));
+            }
+        }
+        write(exchange, code, MAPPER.writeValueAsBytes(body), "application/json");
+    }
+
+    /**
+     * GET只读取状态，其他方法会修改集群，必须带上正确的密钥，按常量时间比较
+     */
+    private boolean authorized(HttpExchange exchange) {
+        if (exchange.getRequestMethod().equals("GET")) {
+            return true;
+        }
+        String provided = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        return secret != null && provided != null
+                && MessageDigest.isEqual(secret, provided.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void write(HttpExchange exchange, int code, byte[] bytes, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            String[] kv = pair.split("=", 2);
+            try {
+                params.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8.name()),
+                        kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8.name()) : "");
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return params;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        longPollExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,164 @@
+package chapter12;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * AM的指标注册表：计数器、延迟直方图和瞬时值，通过JMX和HTTP的/metrics(Prometheus文本格式)导出，
+ * 指标名可以带标签，如 drillbit_completed_total{exit_status="-100"}
+ *
+ * @author 徐洁阳
+ */
+public class AMMetrics implements DynamicMBean {
+    private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+
+    public AtomicLong counter(String name, String description) {
+        help.putIfAbsent(baseName(name), description);
+        return counters.computeIfAbsent(name, k -> new AtomicLong());
+    }
+
+    public LatencyHistogram histogram(String name, String description) {
+        help.putIfAbsent(baseName(name), description);
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public void gauge(String name, String description, Supplier<Number> supplier) {
+        help.put(baseName(name), description);
+        gauges.put(name, supplier);
+    }
+
+    public void registerJmx() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("chapter12:type=DrillOnYarnAM,name=Metrics"));
+        } catch (Exception e) {
+            EventLog.warn("metrics.jmx.failed").error(e).log();
+        }
+    }
+
+    /**
+     * Prometheus文本格式，直方图按累计桶输出，单位毫秒
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        String lastBase = null;
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            lastBase = header(out, entry.getKey(), "counter", lastBase);
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Supplier<Number>> entry : gauges.entrySet()) {
+            lastBase = header(out, entry.getKey(), "gauge", lastBase);
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            lastBase = header(out, entry.getKey(), "histogram", lastBase);
+            String name = baseName(entry.getKey());
+            String labels = labels(entry.getKey());
+            LatencyHistogram histogram = entry.getValue();
+            for (Map.Entry<String, Long> bucket : histogram.cumulativeBuckets().entrySet()) {
+                out.append(name).append("_bucket{").append(labels.isEmpty() ? "" : labels + ",")
+                        .append("le=\"").append(bucket.getKey()).append("\"} ").append(bucket.getValue()).append('\n');
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(suffix).append(' ').append(histogram.getSum()).append('\n');
+            out.append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private String header(StringBuilder out, String name, String type, String lastBase) {
+        String base = baseName(name);
+        if (!base.equals(lastBase)) {
+            out.append("# HELP ").append(base).append(' ').append(help.getOrDefault(base, base)).append('\n');
+            out.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+        }
+        return base;
+    }
+
+    private static String baseName(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    private static String labels(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+    }
+
+    /**
+     * JMX中每个直方图展开为count、avg、p50、p90、p99、max几个属性
+     */
+    private Map<String, Object> attributes() {
+        Map<String, Object> attributes = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            attributes.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Supplier<Number>> entry : gauges.entrySet()) {
+            attributes.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            for (Map.Entry<String, Object> stat : entry.getValue().snapshot().entrySet()) {
+                attributes.put(entry.getKey() + "." + stat.getKey(), stat.getValue());
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) {
+        return attributes().get(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            list.add(new Attribute(name, attributes.get(name)));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("am metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("am metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : attributes().entrySet()) {
+            Object value = entry.getValue();
+            infos.add(new MBeanAttributeInfo(entry.getKey(), value == null ? Long.class.getName() : value.getClass().getName(),
+                    help.getOrDefault(baseName(entry.getKey()), entry.getKey()), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Drill on YARN AM metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -1,18 +1,15 @@
 package chapter12;
 
-import org.apache.commons.io.FilenameUtils;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.yarn.api.records.*;
 import org.apache.hadoop.yarn.client.api.AMRMClient;
 import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
 import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
-import org.apache.hadoop.yarn.util.Records;
+import org.apache.hadoop.yarn.util.ConverterUtils;
 
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by 徐洁阳 on 2019-04-07.
@@ -22,11 +19,32 @@ import java.util.*;
 public class AMRMCallbackHandler implements AMRMClientAsync.CallbackHandler {
     private YarnConfiguration yarnConfig;
     private Properties appConfig;
+    private volatile int targetSize;
+    private final Map<String, DrillbitProfile> profiles = new LinkedHashMap<>();
+    private final Map<Priority, DrillbitProfile> profilesByPriority = new HashMap<>();
+    private final Map<String, Integer> targets = new ConcurrentHashMap<>();
     private AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync;
     private NMClientAsync nmClientAsync;
-    private Set<AMRMClient.ContainerRequest> containerRequests = new HashSet<>();
-    private Set<ContainerInfo> allocatedContainerInfo = new HashSet<>();
-    private Set<ContainerId> completedContainerIds = new HashSet<>();
+    private ContainerLauncher containerLauncher;
+    private ContainerRequester containerRequester;
+    private ContainerRecovery containerRecovery;
+    private NodeHealthTracker nodeHealthTracker;
+    private RollingUpgrade rollingUpgrade;
+    private ReadinessProbe readinessProbe;
+    private DrillbitDrainer drillbitDrainer;
+    private volatile GracefulShutdown gracefulShutdown;
+    private HeartbeatController heartbeatController;
+    private volatile boolean shuttingDown;
+    private final ClusterStatus clusterStatus = new ClusterStatus();
+    private AMMetrics metrics;
+    private LatencyHistogram launchToStart;
+    private LatencyHistogram startToReady;
+    private AtomicLong standbyPromoted;
+    private AtomicLong memoryKilled;
+    private Map<AMRMClient.ContainerRequest, Long> containerRequests = new ConcurrentHashMap<>();
+    private Map<ContainerId, ContainerInfo> allocatedContainerInfo = new ConcurrentHashMap<>();
+    private Set<ContainerId> completedContainerIds = ConcurrentHashMap.newKeySet();
+    private Map<ContainerId, Container> unconfirmedContainers = new ConcurrentHashMap<>();
 
     public void setYarnConfig(YarnConfiguration yarnConfig) {
         this.yarnConfig = yarnConfig;
@@ -36,6 +54,14 @@ public class AMRMCallbackHandler implements AMRMClientAsync.CallbackHandler {
         this.appConfig = appConfig;
     }
 
+    public void setProfiles(List<DrillbitProfile> profiles) {
+        for (DrillbitProfile profile : profiles) {
+            this.profiles.put(profile.getName(), profile);
+            this.profilesByPriority.put(profile.getPriority(), profile);
+            this.targets.put(profile.getName(), 0);
+        }
+    }
+
     public void setAmrmClientAsync(AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync) {
         this.amrmClientAsync = amrmClientAsync;
     }
@@ -44,159 +70,1109 @@ public class AMRMCallbackHandler implements AMRMClientAsync.CallbackHandler {
         this.nmClientAsync = nmClientAsync;
     }
 
-    public Set<AMRMClient.ContainerRequest> getContainerRequests() {
-        return containerRequests;
+    public void setContainerLauncher(ContainerLauncher containerLauncher) {
+        this.containerLauncher = containerLauncher;
+    }
+
+    public void setContainerRequester(ContainerRequester containerRequester) {
+        this.containerRequester = containerRequester;
+    }
+
+    public void setContainerRecovery(ContainerRecovery containerRecovery) {
+        this.containerRecovery = containerRecovery;
+    }
+
+    public void setNodeHealthTracker(NodeHealthTracker nodeHealthTracker) {
+        this.nodeHealthTracker = nodeHealthTracker;
+    }
+
+    public void setRollingUpgrade(RollingUpgrade rollingUpgrade) {
+        this.rollingUpgrade = rollingUpgrade;
+    }
+
+    /**
+     * 不设置时NM启动Container后drillbit立即视为就绪
+     */
+    public void setReadinessProbe(ReadinessProbe readinessProbe) {
+        this.readinessProbe = readinessProbe;
+    }
+
+    /**
+     * 不设置时停止drillbit不等待查询结束
+     */
+    public void setDrillbitDrainer(DrillbitDrainer drillbitDrainer) {
+        this.drillbitDrainer = drillbitDrainer;
     }
 
-    private class ContainerInfo {
-        private ContainerId containerId;
-        private String host;
+    /**
+     * RM要求AM退出或AMRM通信出错时由它停止集群并注销AM
+     */
+    public void setGracefulShutdown(GracefulShutdown gracefulShutdown) {
+        this.gracefulShutdown = gracefulShutdown;
+    }
+
+    public void setMetrics(AMMetrics metrics) {
+        this.metrics = metrics;
+        this.launchToStart = metrics.histogram("drillbit_launch_to_start_ms",
+                "Time from calling startContainerAsync to onContainerStarted");
+        this.startToReady = metrics.histogram("drillbit_start_to_ready_ms",
+                "Time from the drillbit process starting (or a standby being promoted) to passing the readiness probe");
+        metrics.gauge("drillbit_target", "Target number of drillbits", () -> targetSize);
+        metrics.gauge("drillbit_running", "Drillbits ready and not draining or releasing", () -> getRunningContainers().size());
+        metrics.gauge("drillbit_started", "Drillbits started and waiting for the readiness probe", () -> getStartedContainers().size());
+        metrics.gauge("drillbit_pending_requests", "Outstanding container requests", containerRequests::size);
+        metrics.gauge("drillbit_standby", "Standby containers waiting to be promoted", () -> getStandbyContainers().size());
+        metrics.gauge("drillbit_memory_high", "Drillbits whose estimated JVM memory is close to the container limit",
+                () -> getContainers().stream().filter(ContainerInfo::isMemoryHigh).count());
+        this.memoryKilled = metrics.counter("drillbit_memory_killed_total",
+                "Drillbits killed by the NodeManager for exceeding the container memory limit");
+        this.standbyPromoted = metrics.counter("drillbit_standby_promoted_total", "Standby containers promoted to drillbits");
+    }
+
+    public void setHeartbeatController(HeartbeatController heartbeatController) {
+        this.heartbeatController = heartbeatController;
+    }
 
-        public ContainerInfo(ContainerId containerId, String host) {
-            this.containerId = containerId;
-            this.host = host;
+    /**
+     * 调整drillbit的总目标个数，有多个profile时按各profile配置的个数比例分配
+     */
+    public synchronized Map<String, Object> resize(int target) {
+        if (target < 0) {
+            throw new IllegalArgumentException("containers num can not be negative");
         }
+        return resize(distribute(target));
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ContainerInfo that = (ContainerInfo) o;
-            return Objects.equals(containerId, that.containerId);
+    /**
+     * 调整各profile的目标个数，没有给出的profile保持不变：扩容时先提升standby Container，
+     * 再为缺少的drillbit和standby增加Container请求，缩容时先排空并停止最新启动的drillbit，再取消多余的还没分配的请求
+     */
+    public synchronized Map<String, Object> resize(Map<String, Integer> profileTargets) {
+        if (shuttingDown) {
+            throw new IllegalArgumentException("application is shutting down");
         }
+        for (Map.Entry<String, Integer> entry : profileTargets.entrySet()) {
+            if (!profiles.containsKey(entry.getKey())) {
+                throw new IllegalArgumentException("unknown profile " + entry.getKey());
+            }
+            if (entry.getValue() < 0) {
+                throw new IllegalArgumentException("containers num can not be negative");
+            }
+        }
+        Map<String, Integer> previousTargets = new HashMap<>(targets);
+        int previousSize = targetSize;
+        targets.putAll(profileTargets);
+        int target = 0;
+        for (int profileTarget : targets.values()) {
+            target += profileTarget;
+        }
+        EventLog.info("cluster.resize").with("from", targetSize).with("to", target)
+                .with("profiles", new TreeMap<>(targets)).log();
+        targetSize = target;
+        try {
+            applyTargets();
+        } catch (RuntimeException e) {
+            // 申请失败时恢复原来的目标，避免目标个数和实际的请求不一致
+            targets.putAll(previousTargets);
+            targetSize = previousSize;
+            EventLog.error("cluster.resize.failed").with("target", target).with("restored", previousSize).error(e).log();
+            clusterStatus.changed();
+            throw e;
+        }
+        if (containerRecovery != null) {
+            containerRecovery.trimLost(target - getActiveContainers().size());
+        }
+        clusterStatus.changed();
+        return getResizeProgress();
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(containerId);
+    /**
+     * 按targets逐个profile调整drillbit和Container请求
+     */
+    private void applyTargets() {
+        for (DrillbitProfile profile : profiles.values()) {
+            promoteStandby(profile);
+            List<ContainerInfo> active = getActiveContainers(profile);
+            int profileTarget = targets.get(profile.getName());
+            if (active.size() > profileTarget) {
+                active.sort(Comparator.comparingLong(ContainerInfo::getAllocateTime).reversed());
+                for (ContainerInfo containerInfo : active.subList(0, active.size() - profileTarget)) {
+                    stopGracefully(containerInfo);
+                }
+            }
+            int missing = getMissingContainers(profile);
+            if (missing > 0) {
+                addContainerRequests(containerRequester.request(profile, missing, getUsedHosts()));
+            } else {
+                Iterator<AMRMClient.ContainerRequest> iterator = containerRequests.keySet().iterator();
+                while (missing < 0 && iterator.hasNext()) {
+                    AMRMClient.ContainerRequest containerRequest = iterator.next();
+                    if (containerRequest.getPriority().equals(profile.getPriority())) {
+                        containerRequester.remove(containerRequest);
+                        iterator.remove();
+                        missing++;
+                    }
+                }
+            }
         }
+        heartbeatController.update(containerRequests.size());
     }
 
-    @Override
-    public void onContainersAllocated(List<Container> containers) {
-        System.out.println("currently allocated containers is " + containers + ", num is " + containers.size());
+    /**
+     * 按各profile配置的个数比例分配总目标个数，余数给小数部分最大的profile
+     */
+    private Map<String, Integer> distribute(int target) {
+        Map<String, Integer> distributed = new LinkedHashMap<>();
+        int weights = 0;
+        for (DrillbitProfile profile : profiles.values()) {
+            weights += profile.getNum();
+        }
+        List<DrillbitProfile> byRemainder = new ArrayList<>(profiles.values());
+        Map<String, Double> remainders = new HashMap<>();
+        int assigned = 0;
+        for (DrillbitProfile profile : byRemainder) {
+            double share = weights == 0 ? (double) target / profiles.size() : (double) target * profile.getNum() / weights;
+            distributed.put(profile.getName(), (int) share);
+            remainders.put(profile.getName(), share - (int) share);
+            assigned += (int) share;
+        }
+        byRemainder.sort(Comparator.comparing((DrillbitProfile profile) -> remainders.get(profile.getName())).reversed());
+        for (int i = 0; assigned < target; i++, assigned++) {
+            distributed.merge(byRemainder.get(i % byRemainder.size()).getName(), 1, Integer::sum);
+        }
+        return distributed;
+    }
+
+    /**
+     * 先用standby Container替换丢失的drillbit，再补充Container请求，使每个profile已分配加申请中的个数达到目标和standby个数之和
+     */
+    public synchronized void ensureCapacity() {
+        if (shuttingDown) {
+            return;
+        }
+        for (DrillbitProfile profile : profiles.values()) {
+            promoteStandby(profile);
+            int missing = getMissingContainers(profile);
+            if (missing > 0) {
+                EventLog.info("cluster.restore").with("profile", profile.getName()).with("missing", missing)
+                        .with("target", targets.get(profile.getName())).log();
+                addContainerRequests(containerRequester.request(profile, missing, getUsedHosts()));
+            }
+        }
+    }
+
+    /**
+     * 节点不健康或下线：先把节点上的drillbit标记为draining并申请替换，替换就绪后再排空并停止它
+     */
+    public synchronized void drainHost(String host) {
+        for (ContainerInfo containerInfo : getStandbyContainers()) {
+            if (containerInfo.getHost().equals(host)) {
+                releaseContainer(containerInfo);
+            }
+        }
+        for (ContainerInfo containerInfo : getActiveContainers()) {
+            if (containerInfo.getHost().equals(host)) {
+                EventLog.info("container.draining").with("containerId", containerInfo.getContainerId()).with("host", host).log();
+                containerInfo.setDrainStartTime(System.currentTimeMillis());
+                clusterStatus.changed();
+            }
+        }
+        try {
+            ensureCapacity();
+        } catch (RuntimeException e) {
+            EventLog.warn("node.drain.replace.failed").with("host", host).error(e).log();
+        }
+    }
+
+    /**
+     * 滚动升级：把旧版本的drillbit标记为superseded并按当前模板申请替换，它们继续处理查询，由升级流程决定何时停止
+     */
+    public synchronized void supersede(List<ContainerInfo> containers) {
+        long now = System.currentTimeMillis();
+        for (ContainerInfo containerInfo : containers) {
+            if (containerInfo.isReleasing() || containerInfo.isDraining()) {
+                continue;
+            }
+            EventLog.info("container.superseded").with("containerId", containerInfo.getContainerId())
+                    .with("host", containerInfo.getHost()).with("version", containerInfo.getVersion()).log();
+            containerInfo.setSuperseded(true);
+            containerInfo.setDrainStartTime(now);
+        }
+        clusterStatus.changed();
+        try {
+            ensureCapacity();
+        } catch (RuntimeException e) {
+            EventLog.warn("upgrade.replace.failed").error(e).log();
+        }
+    }
+
+    /**
+     * 先排空再停止superseded的drillbit，排空期间由getQuiescingCount计入
+     */
+    public synchronized void stopSuperseded(ContainerInfo containerInfo) {
+        if (containerInfo.isSuperseded() && !containerInfo.isReleasing()) {
+            stopGracefully(containerInfo);
+        }
+    }
+
+    /**
+     * 回滚时superseded的drillbit已经是目标版本，恢复为正常的drillbit，再按目标个数停止多余的drillbit、取消多余的请求
+     */
+    public synchronized void restoreSuperseded() {
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (containerInfo.isSuperseded() && !containerInfo.isReleasing()) {
+                containerInfo.setSuperseded(false);
+                containerInfo.setDrainStartTime(0);
+            }
+        }
+        resize(new LinkedHashMap<>(targets));
+    }
+
+    /**
+     * 释放不是指定版本的standby Container，由ensureCapacity按当前模板补充
+     */
+    public synchronized void releaseStandby(String version) {
+        for (ContainerInfo containerInfo : getStandbyContainers()) {
+            if (!version.equals(containerInfo.getVersion())) {
+                releaseContainer(containerInfo);
+            }
+        }
+        try {
+            ensureCapacity();
+        } catch (RuntimeException e) {
+            EventLog.warn("upgrade.standby.replace.failed").error(e).log();
+        }
+    }
+
+    /**
+     * 停止等待替换超过timeout毫秒的draining drillbit
+     */
+    public synchronized void stopDrainedContainers(long timeout) {
+        long now = System.currentTimeMillis();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (containerInfo.isDraining() && !containerInfo.isReleasing() && !containerInfo.isSuperseded()
+                    && now - containerInfo.getDrainStartTime() > timeout) {
+                EventLog.warn("container.drain.timeout").with("containerId", containerInfo.getContainerId())
+                        .with("host", containerInfo.getHost()).log();
+                stopGracefully(containerInfo);
+            }
+        }
+    }
+
+    /**
+     * 把新的drillbit关联到同一profile中最早开始排空、还没有替换的draining drillbit，新的drillbit就绪后只停止它替换的那个
+     */
+    private void linkReplacement(ContainerInfo replacement) {
+        ContainerInfo oldest = null;
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (containerInfo.isDraining() && !containerInfo.isReleasing() && !containerInfo.isSuperseded()
+                    && containerInfo.getReplacement() == null && containerInfo.getProfile() == replacement.getProfile()
+                    && (oldest == null || containerInfo.getDrainStartTime() < oldest.getDrainStartTime())) {
+                oldest = containerInfo;
+            }
+        }
+        if (oldest != null) {
+            oldest.setReplacement(replacement);
+            replacement.setReplaces(oldest);
+            EventLog.info("container.replacing").with("containerId", replacement.getContainerId())
+                    .with("replaces", oldest.getContainerId()).with("host", oldest.getHost()).log();
+        }
+    }
+
+    /**
+     * 替换的drillbit丢失或者被替换的drillbit已经结束时解除关联，draining drillbit等待下一个替换
+     */
+    private void unlinkReplacement(ContainerInfo containerInfo) {
+        ContainerInfo replaces = containerInfo.getReplaces();
+        if (replaces != null) {
+            replaces.setReplacement(null);
+            containerInfo.setReplaces(null);
+        }
+        ContainerInfo replacement = containerInfo.getReplacement();
+        if (replacement != null) {
+            replacement.setReplaces(null);
+            containerInfo.setReplacement(null);
+        }
+    }
+
+
+    /**
+     * 进入停止流程：不再扩缩容和替换丢失的drillbit，取消所有还没分配的请求并停止standby Container，
+     * 运行中的drillbit由GracefulShutdown排空后调用stopForShutdown停止
+     */
+    public synchronized void shutdown() {
+        shuttingDown = true;
+        EventLog.info("cluster.shutdown").with("drillbits", getContainers().size())
+                .with("pendingRequests", containerRequests.size()).log();
+        for (AMRMClient.ContainerRequest containerRequest : containerRequests.keySet()) {
+            containerRequester.remove(containerRequest);
+        }
+        containerRequests.clear();
+        for (ContainerInfo containerInfo : getStandbyContainers()) {
+            releaseContainer(containerInfo);
+        }
+        heartbeatController.shutdown();
+        clusterStatus.changed();
+    }
+
+    public boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    public synchronized void stopForShutdown(ContainerInfo containerInfo) {
+        if (!containerInfo.isReleasing() && allocatedContainerInfo.containsKey(containerInfo.getContainerId())) {
+            releaseContainer(containerInfo);
+        }
+    }
+
+    /**
+     * 正在排空、还没有发出停止的drillbit个数
+     */
+    public int getQuiescingCount() {
+        int quiescing = 0;
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            quiescing += containerInfo.isQuiescing() ? 1 : 0;
+        }
+        return quiescing;
+    }
+
+    /**
+     * 还没有结束的Container个数，包括正在停止的
+     */
+    public int getAllocatedCount() {
+        return allocatedContainerInfo.size();
+    }
+
+    public Map<String, Object> getResizeProgress() {
+        int running = 0;
+        int started = 0;
+        int releasing = 0;
+        int draining = 0;
+        int standby = 0;
+        Map<String, Map<String, Object>> profileProgress = new LinkedHashMap<>();
+        Map<String, Integer> active = new HashMap<>();
+        for (DrillbitProfile profile : profiles.values()) {
+            Map<String, Object> progress = new LinkedHashMap<>();
+            progress.put("target", targets.get(profile.getName()));
+            progress.put("running", 0);
+            progress.put("standby", 0);
+            progress.put("pending", 0);
+            profileProgress.put(profile.getName(), progress);
+        }
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            Map<String, Object> progress = profileProgress.get(containerInfo.getProfile().getName());
+            if (containerInfo.isReleasing()) {
+                releasing++;
+            } else if (containerInfo.isDraining()) {
+                draining++;
+            } else if (containerInfo.isStandby()) {
+                standby++;
+                progress.merge("standby", 1, (a, b) -> (Integer) a + (Integer) b);
+            } else {
+                active.merge(containerInfo.getProfile().getName(), 1, Integer::sum);
+                if (containerInfo.isReady()) {
+                    running++;
+                    progress.merge("running", 1, (a, b) -> (Integer) a + (Integer) b);
+                } else if (containerInfo.getStartTime() > 0) {
+                    started++;
+                }
+            }
+        }
+        for (AMRMClient.ContainerRequest containerRequest : containerRequests.keySet()) {
+            DrillbitProfile profile = profilesByPriority.get(containerRequest.getPriority());
+            profileProgress.get(profile.getName()).merge("pending", 1, (a, b) -> (Integer) a + (Integer) b);
+        }
+        // 请求分配后先补足drillbit再补充standby，超出缺少的drillbit个数的请求是为standby申请的
+        int pendingDrillbits = 0;
+        for (Map.Entry<String, Map<String, Object>> entry : profileProgress.entrySet()) {
+            Map<String, Object> progress = entry.getValue();
+            int missing = Math.max(0, (Integer) progress.get("target") - active.getOrDefault(entry.getKey(), 0));
+            int profilePending = Math.min((Integer) progress.get("pending"), missing);
+            progress.put("pendingDrillbits", profilePending);
+            pendingDrillbits += profilePending;
+        }
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("target", targetSize);
+        progress.put("running", running);
+        progress.put("started", started);
+        progress.put("allocated", allocatedContainerInfo.size() - releasing - draining - standby);
+        progress.put("pending", containerRequests.size());
+        progress.put("pendingDrillbits", pendingDrillbits);
+        progress.put("standby", standby);
+        progress.put("draining", draining);
+        progress.put("releasing", releasing);
+        progress.put("profiles", profileProgress);
+        return progress;
+    }
+
+    /**
+     * 集群状态：目标个数、每个drillbit的状态、主机、启动时间以及最近退出的Container，
+     * knownVersion和当前版本号相同时最多等待timeout毫秒直到状态变化
+     */
+    public Map<String, Object> getStatus(long knownVersion, long timeout) throws InterruptedException {
+        long version = clusterStatus.awaitChange(knownVersion, timeout);
+        List<Map<String, Object>> drillbits = new ArrayList<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            Map<String, Object> drillbit = new LinkedHashMap<>();
+            drillbit.put("containerId", containerInfo.getContainerId().toString());
+            drillbit.put("host", containerInfo.getHost());
+            drillbit.put("profile", containerInfo.getProfile().getName());
+            drillbit.put("state", containerInfo.getState());
+            drillbit.put("version", containerInfo.getVersion());
+            drillbit.put("allocateTime", containerInfo.getAllocateTime());
+            drillbit.put("launchTime", containerInfo.getLaunchTime());
+            drillbit.put("startTime", containerInfo.getStartTime());
+            drillbit.put("readyTime", containerInfo.getReadyTime());
+            MemoryPartition partition = containerInfo.getMemoryPartition();
+            drillbit.put("memory", partition == null ? null : partition.toMap());
+            drillbit.put("memoryHigh", containerInfo.isMemoryHigh());
+            drillbits.add(drillbit);
+        }
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("version", version);
+        status.putAll(getResizeProgress());
+        status.put("drillbits", drillbits);
+        status.put("completed", clusterStatus.getCompletedContainers());
+        return status;
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    public Map<String, Integer> getTargets() {
+        return new TreeMap<>(targets);
+    }
+
+    /**
+     * 没有在释放中的Container
+     */
+    public List<ContainerInfo> getContainers() {
+        List<ContainerInfo> containers = new ArrayList<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (!containerInfo.isReleasing()) {
+                containers.add(containerInfo);
+            }
+        }
+        return containers;
+    }
+
+    public int getPendingRequests() {
+        return containerRequests.size();
+    }
+
+    /**
+     * since及之后发出、还没有分配的请求个数
+     */
+    public int getPendingRequests(long since) {
+        int pending = 0;
+        for (long requestTime : containerRequests.values()) {
+            pending += requestTime >= since ? 1 : 0;
+        }
+        return pending;
+    }
+
+    public long getStatusVersion() {
+        return clusterStatus.getVersion();
+    }
+
+    /**
+     * 写入AM状态日志的Container信息，正在释放的不需要恢复
+     */
+    public Map<String, Map<String, Object>> getJournalState() {
+        Map<String, Map<String, Object>> containers = new TreeMap<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            Map<String, Object> container = new LinkedHashMap<>();
+            container.put("host", containerInfo.getHost());
+            container.put("profile", containerInfo.getProfile().getName());
+            container.put("allocateTime", containerInfo.getAllocateTime());
+            container.put("launchTime", containerInfo.getLaunchTime());
+            container.put("startTime", containerInfo.getStartTime());
+            container.put("readyTime", containerInfo.getReadyTime());
+            container.put("standby", containerInfo.isStandby());
+            container.put("releasing", containerInfo.isReleasing());
+            container.put("version", containerInfo.getVersion());
+            containers.put(containerInfo.getContainerId().toString(), container);
+        }
+        return containers;
+    }
+
+    /**
+     * AM重启后接管上一个attempt留下的Container：已经启动过的drillbit直接接管，不重启；
+     * 状态日志中还没有开始启动或没有记录的Container先向NM查询状态，NM上没有时才由当前AM启动；
+     * standby Container轮询的是上一个AM的地址，和已经在停止中的Container一样直接释放，由ensureCapacity重新补充
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void adopt(List<Container> containers, Map<String, Object> journal) {
+        Map<String, Map<String, Object>> journaled = (Map<String, Map<String, Object>>)
+                journal.getOrDefault("containers", Collections.emptyMap());
+        long now = System.currentTimeMillis();
         for (Container container : containers) {
-            ContainerLaunchContext containerContext = Records.newRecord(ContainerLaunchContext.class);
+            Map<String, Object> saved = journaled.get(container.getId().toString());
+            DrillbitProfile profile = profilesByPriority.getOrDefault(container.getPriority(),
+                    profiles.values().iterator().next());
+            long allocateTime = saved == null ? now : ((Number) saved.get("allocateTime")).longValue();
+            ContainerInfo containerInfo = new ContainerInfo(container.getId(), container.getNodeId(), profile,
+                    allocateTime, true);
+            containerInfo.setVersion(saved == null ? null : (String) saved.get("version"));
+            allocatedContainerInfo.put(container.getId(), containerInfo);
+            if (saved != null && (Boolean.TRUE.equals(saved.get("standby")) || Boolean.TRUE.equals(saved.get("releasing")))) {
+                releaseContainer(containerInfo);
+                continue;
+            }
+            long launchTime = saved == null ? 0 : ((Number) saved.get("launchTime")).longValue();
+            if (launchTime == 0) {
+                // 不知道上一个attempt是否已经启动了它，向NM查询状态，NM上没有这个Container时再启动
+                unconfirmedContainers.put(container.getId(), container);
+                EventLog.info("container.status.query").with("containerId", container.getId())
+                        .with("host", containerInfo.getHost()).with("journaled", saved != null).log();
+                nmClientAsync.getContainerStatusAsync(container.getId(), container.getNodeId());
+                continue;
+            }
+            long startTime = ((Number) saved.get("startTime")).longValue();
+            Number readyTime = (Number) saved.get("readyTime");
+            containerInfo.setLaunchTime(launchTime);
+            if (readinessProbe == null) {
+                containerInfo.setStartTime(startTime > 0 ? startTime : now);
+                containerInfo.setReadyTime(containerInfo.getStartTime());
+            } else if (readyTime != null && readyTime.longValue() > 0) {
+                containerInfo.setStartTime(startTime);
+                containerInfo.setReadyTime(readyTime.longValue());
+            } else {
+                markAdoptedStarted(containerInfo, now);
+            }
+            EventLog.info("container.adopted").with("containerId", container.getId())
+                    .with("host", containerInfo.getHost()).with("journaled", true).log();
+        }
+        clusterStatus.changed();
+    }
 
-            setContainerEnvironment(containerContext);
+    /**
+     * 上一个attempt还没有确认就绪(或状态日志中没有记录)：从接管时开始计算就绪超时，由探测重新确认，不按启动时间判定超时
+     */
+    private void markAdoptedStarted(ContainerInfo containerInfo, long now) {
+        if (containerInfo.getLaunchTime() == 0) {
+            containerInfo.setLaunchTime(now);
+        }
+        containerInfo.setStartTime(now);
+        if (readinessProbe == null) {
+            containerInfo.setReadyTime(now);
+        }
+    }
 
-            setContainerResource(containerContext);
+    /**
+     * 接管时查询的Container状态：NM上已经有这个Container，说明上一个attempt启动过它，直接接管
+     */
+    public synchronized void onContainerStatusReceived(ContainerId containerId, ContainerStatus status) {
+        Container container = unconfirmedContainers.remove(containerId);
+        ContainerInfo containerInfo = allocatedContainerInfo.get(containerId);
+        if (container == null || containerInfo == null) {
+            return;
+        }
+        EventLog.info("container.adopted").with("containerId", containerId).with("host", containerInfo.getHost())
+                .with("state", status.getState()).log();
+        // 已经结束的Container由onContainersCompleted处理
+        markAdoptedStarted(containerInfo, System.currentTimeMillis());
+        clusterStatus.changed();
+    }
 
-            setContainerCommand(containerContext);
+    /**
+     * 接管时查询Container状态失败：NM上没有这个Container，上一个attempt还没有启动它，由当前AM启动
+     */
+    public synchronized void onContainerStatusError(ContainerId containerId, Throwable t) {
+        Container container = unconfirmedContainers.remove(containerId);
+        ContainerInfo adopted = allocatedContainerInfo.get(containerId);
+        if (container == null || adopted == null || adopted.isReleasing()) {
+            return;
+        }
+        ContainerInfo containerInfo = new ContainerInfo(containerId, container.getNodeId(), adopted.getProfile());
+        allocatedContainerInfo.put(containerId, containerInfo);
+        EventLog.info("container.allocated").with("containerId", containerId).with("host", containerInfo.getHost())
+                .with("previousAttempt", true).with("reason", t.getMessage()).log();
+        containerLauncher.launch(container, containerInfo);
+        clusterStatus.changed();
+    }
 
-            nmClientAsync.startContainerAsync(container, containerContext);
+    /**
+     * 已经就绪并且没有在排空或释放中的drillbit
+     */
+    public List<ContainerInfo> getRunningContainers() {
+        List<ContainerInfo> running = new ArrayList<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (!containerInfo.isReleasing() && !containerInfo.isDraining() && !containerInfo.isStandby()
+                    && containerInfo.isReady()) {
+                running.add(containerInfo);
+            }
+        }
+        return running;
+    }
 
-            allocatedContainerInfo.add(new ContainerInfo(container.getId(), container.getNodeId().getHost()));
+    /**
+     * 进程已经启动、等待就绪探测的drillbit
+     */
+    public List<ContainerInfo> getStartedContainers() {
+        List<ContainerInfo> started = new ArrayList<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (!containerInfo.isReleasing() && !containerInfo.isDraining() && !containerInfo.isStandby()
+                    && containerInfo.getStartTime() > 0 && !containerInfo.isReady()) {
+                started.add(containerInfo);
+            }
         }
+        return started;
+    }
+
+    @Override
+    public synchronized void onContainersAllocated(List<Container> containers) {
+        EventLog.debug("containers.allocated").with("count", containers.size()).log();
+        Map<String, Integer> active = new HashMap<>();
+        Map<String, Integer> standby = new HashMap<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (!containerInfo.isReleasing() && !containerInfo.isDraining()) {
+                (containerInfo.isStandby() ? standby : active).merge(containerInfo.getProfile().getName(), 1, Integer::sum);
+            }
+        }
+        for (Container container : containers) {
+            // RM只通过优先级区分profile
+            DrillbitProfile profile = profilesByPriority.get(container.getPriority());
+            String name = profile == null ? null : profile.getName();
+            // drillbit个数达到目标后，分配到的Container用来补充standby
+            boolean asStandby = profile != null && active.getOrDefault(name, 0) >= targets.get(name);
+            if (profile == null || shuttingDown || asStandby && standby.getOrDefault(name, 0) >= profile.getStandby()) {
+                EventLog.info("container.surplus").with("containerId", container.getId())
+                        .with("host", container.getNodeId().getHost()).with("priority", container.getPriority()).log();
+                amrmClientAsync.releaseAssignedContainer(container.getId());
+                continue;
+            }
+            removeMatchedRequest(container);
+            ContainerInfo containerInfo = new ContainerInfo(container.getId(), container.getNodeId(), profile);
+            containerInfo.setStandby(asStandby);
+            (asStandby ? standby : active).merge(name, 1, Integer::sum);
+            allocatedContainerInfo.put(container.getId(), containerInfo);
+            if (!asStandby) {
+                linkReplacement(containerInfo);
+            }
+            EventLog.info("container.allocated").with("containerId", container.getId())
+                    .with("host", container.getNodeId().getHost()).with("profile", name).with("standby", asStandby).log();
+            containerLauncher.launch(container, containerInfo);
+        }
+        clusterStatus.changed();
 
         logContainerAllocate();
 
-        if (allocatedContainerInfo.size() == Integer.parseInt(appConfig.getProperty("containers.num"))) {
-            removeContainerRequest();
+        for (DrillbitProfile profile : profiles.values()) {
+            String name = profile.getName();
+            if (active.getOrDefault(name, 0) >= targets.get(name) && standby.getOrDefault(name, 0) >= profile.getStandby()) {
+                removeContainerRequests(profile);
+            }
         }
     }
 
     @Override
-    public void onContainersCompleted(List<ContainerStatus> statuses) {
-        System.out.println("completed containers statuses is " + statuses + ", size is " + statuses.size());
+    public synchronized void onContainersCompleted(List<ContainerStatus> statuses) {
+        EventLog.debug("containers.completed").with("count", statuses.size()).log();
         for (ContainerStatus status : statuses) {
             if (!completedContainerIds.contains(status.getContainerId())) {
                 ContainerId containerId = status.getContainerId();
                 completedContainerIds.add(containerId);
 
-                allocatedContainerInfo.remove(new ContainerInfo(containerId, ""));
+                ContainerInfo containerInfo = allocatedContainerInfo.remove(containerId);
+                unconfirmedContainers.remove(containerId);
+                if (containerInfo != null) {
+                    unlinkReplacement(containerInfo);
+                }
+                clusterStatus.recordCompleted(containerInfo, status);
+                metrics.counter("drillbit_completed_total{exit_status=\"" + status.getExitStatus() + "\"}",
+                        "Completed drillbit containers by ContainerExitStatus").incrementAndGet();
+                if (containerInfo != null && containerInfo.isSuperseded()) {
+                    // 替换在标记为superseded时已经申请过了
+                    EventLog.info("container.superseded.completed").with("containerId", containerId)
+                            .with("host", containerInfo.getHost()).with("version", containerInfo.getVersion())
+                            .with("released", containerInfo.isReleasing()).log();
+                    continue;
+                }
+                if (containerInfo != null && containerInfo.isDraining()) {
+                    // 替换已经申请过了
+                    nodeHealthTracker.onDrained(containerInfo);
+                    continue;
+                }
+                if (containerInfo != null && containerInfo.isReleasing()) {
+                    EventLog.info("container.released").with("containerId", containerId)
+                            .with("host", containerInfo.getHost()).with("exitStatus", status.getExitStatus()).log();
+                    continue;
+                }
 
-                logContainerCompleteInfo(status, containerId);
+                logContainerCompleteInfo(status, containerId, containerInfo == null ? null : containerInfo.getHost());
+                if (containerInfo != null && (status.getExitStatus() == ContainerExitStatus.KILLED_EXCEEDED_PMEM
+                        || status.getExitStatus() == ContainerExitStatus.KILLED_EXCEEDED_VMEM)) {
+                    memoryKilled.incrementAndGet();
+                    EventLog.error("container.memory.exceeded").with("containerId", containerId)
+                            .with("host", containerInfo.getHost()).with("partition", containerInfo.getMemoryPartition())
+                            .with("memoryHigh", containerInfo.isMemoryHigh()).log();
+                }
+
+                if (containerInfo != null && !shuttingDown) {
+                    if (!containerInfo.isStandby()) {
+                        promoteStandby(containerInfo.getProfile());
+                    }
+                    if (rollingUpgrade != null) {
+                        rollingUpgrade.onContainerLost(containerInfo);
+                    }
+                    containerRecovery.onContainerLost(containerId, containerInfo.getHost(), status.getExitStatus());
+                }
             }
         }
     }
 
+    public synchronized void onContainerStarted(ContainerId containerId) {
+        ContainerInfo containerInfo = allocatedContainerInfo.get(containerId);
+        if (containerInfo != null) {
+            containerInfo.setStartTime(System.currentTimeMillis());
+            if (containerInfo.getLaunchTime() > 0) {
+                launchToStart.record(containerInfo.getStartTime() - containerInfo.getLaunchTime());
+            }
+            EventLog.info("container.started").with("containerId", containerId).with("host", containerInfo.getHost())
+                    .with("launchMillis", containerInfo.getStartTime() - containerInfo.getLaunchTime())
+                    .with("standby", containerInfo.isStandby()).log();
+            clusterStatus.changed();
+            if (!containerInfo.isStandby() && readinessProbe == null) {
+                ready(containerInfo);
+            }
+        }
+    }
+
+    /**
+     * 就绪探测通过
+     */
+    public synchronized void onContainerReady(ContainerId containerId) {
+        ContainerInfo containerInfo = allocatedContainerInfo.get(containerId);
+        if (containerInfo != null && !containerInfo.isReleasing() && !containerInfo.isStandby() && !containerInfo.isReady()) {
+            ready(containerInfo);
+        }
+    }
+
+    /**
+     * 启动后超过timeout毫秒还没有就绪：停止它并按失败替换
+     */
+    public synchronized void onContainerNotReady(ContainerId containerId, long timeout) {
+        ContainerInfo containerInfo = allocatedContainerInfo.get(containerId);
+        if (containerInfo == null || containerInfo.isReleasing() || containerInfo.isStandby() || containerInfo.isReady()
+                || shuttingDown) {
+            return;
+        }
+        EventLog.warn("container.not.ready").with("containerId", containerId).with("host", containerInfo.getHost())
+                .with("timeoutMillis", timeout).log();
+        unlinkReplacement(containerInfo);
+        releaseContainer(containerInfo);
+        if (rollingUpgrade != null) {
+            rollingUpgrade.onContainerLost(containerInfo);
+        }
+        containerRecovery.onContainerLost(containerId, containerInfo.getHost(), null);
+    }
+
+    /**
+     * 替换的drillbit就绪后才停止排空中的drillbit，并统计恢复时间
+     */
+    private void ready(ContainerInfo containerInfo) {
+        long now = System.currentTimeMillis();
+        containerInfo.setReadyTime(now);
+        startToReady.record(now - containerInfo.getStartTime());
+        EventLog.info("container.ready").with("containerId", containerInfo.getContainerId())
+                .with("host", containerInfo.getHost()).with("startToReadyMillis", now - containerInfo.getStartTime()).log();
+        clusterStatus.changed();
+        containerRecovery.onContainerReady();
+        ContainerInfo replaces = containerInfo.getReplaces();
+        if (replaces != null) {
+            unlinkReplacement(containerInfo);
+            if (!replaces.isReleasing() && allocatedContainerInfo.containsKey(replaces.getContainerId())) {
+                stopGracefully(replaces);
+            }
+        }
+    }
+
+    /**
+     * NM停止Container失败，例如NM已经不可达，改为通过RM释放
+     */
+    public void onStopContainerError(ContainerId containerId, Throwable t) {
+        EventLog.warn("container.stop.failed").with("containerId", containerId).error(t).log();
+        amrmClientAsync.releaseAssignedContainer(containerId);
+    }
+
+    /**
+     * standby Container的启动脚本轮询是否已经被提升，Container已经不存在时也返回false，等待被停止
+     */
+    public Map<String, Object> getStandbyState(String containerId) {
+        ContainerInfo containerInfo = allocatedContainerInfo.get(ConverterUtils.toContainerId(containerId));
+        boolean promoted = containerInfo != null && !containerInfo.isStandby() && !containerInfo.isReleasing();
+        return Collections.singletonMap("promoted", promoted);
+    }
+
+    /**
+     * 用同一profile的standby Container补足缺少的drillbit，优先提升已经启动、等待时间最长的，提升后启动脚本在下一次轮询时启动drillbit
+     */
+    private void promoteStandby(DrillbitProfile profile) {
+        int missing = targets.get(profile.getName()) - getActiveContainers(profile).size();
+        if (missing <= 0) {
+            return;
+        }
+        List<ContainerInfo> candidates = getStandbyContainers(profile);
+        candidates.sort(Comparator.comparing((ContainerInfo containerInfo) -> containerInfo.getStartTime() == 0)
+                .thenComparingLong(ContainerInfo::getAllocateTime));
+        for (ContainerInfo containerInfo : candidates.subList(0, Math.min(missing, candidates.size()))) {
+            containerInfo.setStandby(false);
+            linkReplacement(containerInfo);
+            long warmMillis = 0;
+            if (containerInfo.getStartTime() > 0) {
+                // drillbit从提升时开始启动，从这时起等待就绪
+                long now = System.currentTimeMillis();
+                warmMillis = now - containerInfo.getStartTime();
+                containerInfo.setStartTime(now);
+                if (readinessProbe == null) {
+                    ready(containerInfo);
+                }
+            }
+            standbyPromoted.incrementAndGet();
+            EventLog.info("container.promoted").with("containerId", containerInfo.getContainerId())
+                    .with("host", containerInfo.getHost()).with("standbyMillis", warmMillis).log();
+        }
+        clusterStatus.changed();
+    }
+
+    public synchronized void onContainerStartFailed(ContainerId containerId, Throwable t) {
+        EventLog.error("container.start.failed").with("containerId", containerId).error(t).log();
+        ContainerInfo containerInfo = allocatedContainerInfo.remove(containerId);
+        if (containerInfo != null) {
+            unlinkReplacement(containerInfo);
+            clusterStatus.changed();
+            amrmClientAsync.releaseAssignedContainer(containerId);
+            if (shuttingDown) {
+                return;
+            }
+            if (rollingUpgrade != null) {
+                rollingUpgrade.onContainerLost(containerInfo);
+            }
+            containerRecovery.onContainerLost(containerId, containerInfo.getHost(), null);
+        }
+    }
+
     @Override
     public void onShutdownRequest() {
-
+        EventLog.warn("am.shutdown.requested").log();
+        if (gracefulShutdown != null) {
+            // RM已经不再接受心跳，不等待查询结束，直接停止所有drillbit
+            gracefulShutdown.start(Collections.singletonMap("timeout", "0"));
+        }
     }
 
     @Override
     public void onNodesUpdated(List<NodeReport> updatedNodes) {
-
+        nodeHealthTracker.onNodesUpdated(updatedNodes);
     }
 
     @Override
     public float getProgress() {
-        return 0;
+        int target = targetSize;
+        return target == 0 ? 1 : Math.min(1, (float) getRunningContainers().size() / target);
     }
 
     @Override
     public void onError(Throwable e) {
+        EventLog.error("am.rm.error").error(e).log();
+        if (gracefulShutdown != null) {
+            gracefulShutdown.abort("resource manager communication failed: " + e);
+        }
+    }
 
+    private void logContainerAllocate() {
+        int allocated = getActiveContainers().size();
+        EventLog.info("cluster.allocation").with("allocated", allocated).with("target", targetSize)
+                .with("remaining", Math.max(0, targetSize - allocated)).log();
     }
 
-    private void setContainerEnvironment(ContainerLaunchContext containerContext) {
-        System.out.println("start set container environment");
-        Map<String, String> containerEnvironment = YarnUtil.buildCommonEnvironment(yarnConfig);
-        containerContext.setEnvironment(containerEnvironment);
-        System.out.println("end set container environment");
+    private void removeContainerRequests(DrillbitProfile profile) {
+        int cancelled = 0;
+        Iterator<AMRMClient.ContainerRequest> iterator = containerRequests.keySet().iterator();
+        while (iterator.hasNext()) {
+            AMRMClient.ContainerRequest containerRequest = iterator.next();
+            if (containerRequest.getPriority().equals(profile.getPriority())) {
+                containerRequester.remove(containerRequest);
+                iterator.remove();
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            EventLog.info("requests.cancelled").with("profile", profile.getName()).with("count", cancelled).log();
+            heartbeatController.update(containerRequests.size());
+        }
     }
 
-    private void setContainerResource(ContainerLaunchContext containerContext) {
-        System.out.println("start set container resources");
-        String drill = appConfig.getProperty("fs.upload.dir") + FilenameUtils.getName(appConfig.getProperty("drill.path"));
-        Path path = new Path(drill);
-        FileStatus fileStatus;
-        try {
-            fileStatus = FileSystem.get(yarnConfig).getFileStatus(path);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void removeMatchedRequest(Container container) {
+        AMRMClient.ContainerRequest matched = null;
+        for (AMRMClient.ContainerRequest containerRequest : containerRequests.keySet()) {
+            if (!containerRequest.getPriority().equals(container.getPriority())) {
+                continue;
+            }
+            if (containerRequest.getNodes() != null && containerRequest.getNodes().contains(container.getNodeId().getHost())) {
+                matched = containerRequest;
+                break;
+            }
+            if (matched == null) {
+                matched = containerRequest;
+            }
+        }
+        if (matched != null) {
+            containerRequester.remove(matched);
+            heartbeatController.recordAllocation(containerRequests.remove(matched));
+            heartbeatController.update(containerRequests.size());
+        }
+    }
+
+    private void addContainerRequests(List<AMRMClient.ContainerRequest> requests) {
+        long now = System.currentTimeMillis();
+        for (AMRMClient.ContainerRequest containerRequest : requests) {
+            containerRequests.put(containerRequest, now);
         }
-        containerContext.setLocalResources(YarnUtil.buildResource(fileStatus, LocalResourceType.ARCHIVE, LocalResourceVisibility.PUBLIC));
-        System.out.println("end set container resources");
+        heartbeatController.update(containerRequests.size());
     }
 
-    private void setContainerCommand(ContainerLaunchContext containerContext) {
-        System.out.println("start set container command");
-        containerContext.setCommands(YarnUtil.buildCommand(FilenameUtils.getName(appConfig.getProperty("drill.path")) +
-                "/" + appConfig.getProperty("drill.archive.name") + "/bin/drillbit.sh run"));
-        System.out.println("end set container command");
+    /**
+     * 先排空再停止：就绪的drillbit进入quiescent模式，等待运行和排队的查询结束或超过stop.drain.timeout后再停止，
+     * 期间已经算作releasing，不再接收新连接也不计入目标个数；没有就绪的drillbit直接停止
+     */
+    private void stopGracefully(ContainerInfo containerInfo) {
+        if (drillbitDrainer == null || !containerInfo.isReady() || containerInfo.isStandby()) {
+            releaseContainer(containerInfo);
+            return;
+        }
+        EventLog.info("container.quiescing").with("containerId", containerInfo.getContainerId())
+                .with("host", containerInfo.getHost()).log();
+        containerInfo.setReleasing(true);
+        containerInfo.setQuiescing(true);
+        clusterStatus.changed();
+        drillbitDrainer.drain(containerInfo, System.currentTimeMillis() + drillbitDrainer.getDrainTimeout())
+                .whenComplete((report, e) -> onQuiesced(containerInfo, report, e));
     }
 
-    private void logContainerAllocate() {
-        int needed = Integer.parseInt(appConfig.getProperty("containers.num")) - allocatedContainerInfo.size();
-        if (needed > 0) {
-            System.out.println(allocatedContainerInfo.size() + " containers allocated, " + needed + " remaining");
+    private synchronized void onQuiesced(ContainerInfo containerInfo, Map<String, Object> report, Throwable e) {
+        containerInfo.setQuiescing(false);
+        if (!allocatedContainerInfo.containsKey(containerInfo.getContainerId())) {
+            // 排空期间Container已经结束
+            return;
+        }
+        if (e != null) {
+            EventLog.warn("container.quiesce.failed").with("containerId", containerInfo.getContainerId()).error(e).log();
         } else {
-            System.out.println("fully allocated " + allocatedContainerInfo.size() + " containers");
+            EventLog.info("container.quiesced").with("containerId", containerInfo.getContainerId())
+                    .with("host", containerInfo.getHost()).with("outcome", report.get("outcome"))
+                    .with("queriesLeft", report.get("queriesLeft")).with("drainMillis", report.get("drainMillis")).log();
         }
+        releaseContainer(containerInfo);
     }
 
-    private void removeContainerRequest() {
-        System.out.println("all container request finish, remove other container request");
-        for (AMRMClient.ContainerRequest containerRequest : containerRequests) {
-            amrmClientAsync.removeContainerRequest(containerRequest);
+    private void releaseContainer(ContainerInfo containerInfo) {
+        EventLog.info("container.stopping").with("containerId", containerInfo.getContainerId())
+                .with("host", containerInfo.getHost()).log();
+        containerInfo.setReleasing(true);
+        clusterStatus.changed();
+        if (containerInfo.isAdopted()) {
+            amrmClientAsync.releaseAssignedContainer(containerInfo.getContainerId());
+        } else {
+            nmClientAsync.stopContainerAsync(containerInfo.getContainerId(), containerInfo.getNodeId());
         }
-        containerRequests.clear();
     }
 
-    private void logContainerCompleteInfo(ContainerStatus containerStatus, ContainerId containerId) {
-        boolean containerSuccessful = false;
+    private List<ContainerInfo> getActiveContainers() {
+        List<ContainerInfo> active = new ArrayList<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (!containerInfo.isReleasing() && !containerInfo.isDraining() && !containerInfo.isStandby()) {
+                active.add(containerInfo);
+            }
+        }
+        return active;
+    }
+
+    private List<ContainerInfo> getActiveContainers(DrillbitProfile profile) {
+        List<ContainerInfo> active = new ArrayList<>();
+        for (ContainerInfo containerInfo : getActiveContainers()) {
+            if (containerInfo.getProfile() == profile) {
+                active.add(containerInfo);
+            }
+        }
+        return active;
+    }
+
+    private List<ContainerInfo> getStandbyContainers() {
+        List<ContainerInfo> standby = new ArrayList<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            if (!containerInfo.isReleasing() && containerInfo.isStandby()) {
+                standby.add(containerInfo);
+            }
+        }
+        return standby;
+    }
+
+    private List<ContainerInfo> getStandbyContainers(DrillbitProfile profile) {
+        List<ContainerInfo> standby = new ArrayList<>();
+        for (ContainerInfo containerInfo : getStandbyContainers()) {
+            if (containerInfo.getProfile() == profile) {
+                standby.add(containerInfo);
+            }
+        }
+        return standby;
+    }
+
+    /**
+     * profile的目标个数加standby个数，减去已分配和申请中的个数
+     */
+    private int getMissingContainers(DrillbitProfile profile) {
+        int pending = 0;
+        for (AMRMClient.ContainerRequest containerRequest : containerRequests.keySet()) {
+            if (containerRequest.getPriority().equals(profile.getPriority())) {
+                pending++;
+            }
+        }
+        return targets.get(profile.getName()) + profile.getStandby() - getActiveContainers(profile).size()
+                - getStandbyContainers(profile).size() - pending;
+    }
+
+    private Set<String> getUsedHosts() {
+        Set<String> hosts = new HashSet<>();
+        for (ContainerInfo containerInfo : allocatedContainerInfo.values()) {
+            hosts.add(containerInfo.getHost());
+        }
+        for (AMRMClient.ContainerRequest containerRequest : containerRequests.keySet()) {
+            if (containerRequest.getNodes() != null) {
+                hosts.addAll(containerRequest.getNodes());
+            }
+        }
+        return hosts;
+    }
+
+    private void logContainerCompleteInfo(ContainerStatus containerStatus, ContainerId containerId, String host) {
+        String reason;
         switch (containerStatus.getExitStatus()) {
             case ContainerExitStatus.SUCCESS:
-                System.out.println("container exit status is " + containerStatus.getExitStatus() + ", container " + containerId + " finished successfully...");
-                containerSuccessful = true;
+                reason = "finished";
                 break;
             case ContainerExitStatus.ABORTED:
-                System.err.println("container exit status is " + containerStatus.getExitStatus() + ", container " + containerId + " aborted...");
+                reason = "aborted";
                 break;
             case ContainerExitStatus.DISKS_FAILED:
-                System.err.println("container exit status is " + containerStatus.getExitStatus() + ", container " + containerId + " ran out of disk...");
+                reason = "disks_failed";
                 break;
             case ContainerExitStatus.PREEMPTED:
-                System.err.println("container exit status is " + containerStatus.getExitStatus() + ", container " + containerId + " preempted..");
+                reason = "preempted";
+                break;
+            case ContainerExitStatus.KILLED_EXCEEDED_PMEM:
+                reason = "exceeded_pmem";
+                break;
+            case ContainerExitStatus.KILLED_EXCEEDED_VMEM:
+                reason = "exceeded_vmem";
                 break;
             default:
-                System.err.println("container exit status is " + containerStatus.getExitStatus() + ", container " + containerId + " exited with an invalid/unknown exit code...");
-        }
-
-        if (!containerSuccessful) {
-            System.err.println("cluster has not completed successfully...");
+                reason = "unknown";
         }
+        EventLog.warn("container.lost").with("containerId", containerId).with("host", host)
+                .with("exitStatus", containerStatus.getExitStatus()).with("reason", reason)
+                .with("diagnostics", containerStatus.getDiagnostics()).log();
     }
 }
@@ -0,0 +1,120 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AM状态在HDFS上的日志文件：各profile的目标个数、黑名单节点和每个drillbit的启动时间，集群状态变化后定期覆盖写入，
+ * AM重启后和getContainersFromPreviousAttempts一起用来恢复状态。先写临时文件再改名，保证读到的是完整的文件
+ *
+ * @author 徐洁阳
+ */
+public class AMStateJournal {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final FileSystem fileSystem;
+    private final Path path;
+    private final Path tmpPath;
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final ContainerRequester containerRequester;
+    private final ScheduledExecutorService scheduler;
+    private long writtenVersion = -1;
+    private Set<String> writtenBlacklist = Collections.emptySet();
+
+    public AMStateJournal(FileSystem fileSystem, Path path, AMRMCallbackHandler amrmCallbackHandler,
+                          ContainerRequester containerRequester) {
+        this.fileSystem = fileSystem;
+        this.path = path;
+        this.tmpPath = path.suffix("._COPYING_");
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.containerRequester = containerRequester;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("am-state-journal").setDaemon(true).build());
+    }
+
+    /**
+     * 读取上一个attempt写下的状态，没有时返回空Map
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> load() {
+        try {
+            Path existing = fileSystem.exists(path) ? path : fileSystem.exists(tmpPath) ? tmpPath : null;
+            if (existing == null) {
+                return Collections.emptyMap();
+            }
+            try (InputStream in = fileSystem.open(existing)) {
+                return MAPPER.readValue(in, Map.class);
+            }
+        } catch (IOException e) {
+            EventLog.warn("journal.load.failed").with("path", path).error(e).log();
+            return Collections.emptyMap();
+        }
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeIfChanged();
+                } catch (RuntimeException e) {
+                    EventLog.warn("journal.write.failed").with("path", path).error(e).log();
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void writeIfChanged() {
+        long version = amrmCallbackHandler.getStatusVersion();
+        Set<String> blacklist = containerRequester.getBlacklistedHosts();
+        if (version == writtenVersion && blacklist.equals(writtenBlacklist)) {
+            return;
+        }
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("version", version);
+        state.put("updateTime", System.currentTimeMillis());
+        state.put("target", amrmCallbackHandler.getTargetSize());
+        state.put("targets", amrmCallbackHandler.getTargets());
+        state.put("blacklist", blacklist);
+        state.put("containers", amrmCallbackHandler.getJournalState());
+        try {
+            try (FSDataOutputStream out = fileSystem.create(tmpPath, true)) {
+                MAPPER.writeValue(out, state);
+            }
+            fileSystem.delete(path, false);
+            if (!fileSystem.rename(tmpPath, path)) {
+                throw new IOException("rename " + tmpPath + " to " + path + " failed");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("write am state journal error", e);
+        }
+        writtenVersion = version;
+        writtenBlacklist = blacklist;
+    }
+
+    public void delete() {
+        try {
+            fileSystem.delete(path, false);
+            fileSystem.delete(tmpPath, false);
+        } catch (IOException e) {
+            EventLog.warn("journal.delete.failed").with("path", path).error(e).log();
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
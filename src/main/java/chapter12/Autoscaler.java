@@ -0,0 +1,154 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AM中的自动扩缩容引擎：定时并发采样所有运行中的drillbit，由ScalingPolicy给出期望个数，
+ * 同一方向的决策连续出现stable次才执行，扩容和缩容各有冷却时间，结果限制在min和max之间
+ *
+ * @author 徐洁阳
+ */
+public class Autoscaler {
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final DrillbitMetricsSampler sampler;
+    private final ScalingPolicy policy;
+    private final long interval;
+    private final ExecutorService sampleExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    private int min;
+    private int max;
+    private int stableSamples;
+    private long upCooldown;
+    private long downCooldown;
+    private long resizeTimeout;
+    private int lastDirection;
+    private int directionCount;
+    private long lastScaleTime;
+
+    public Autoscaler(AMRMCallbackHandler amrmCallbackHandler, DrillbitMetricsSampler sampler, ScalingPolicy policy,
+                      Properties config) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.sampler = sampler;
+        this.policy = policy;
+        reconfigure(config);
+        this.interval = DrillOnYarnConfig.getLong(config, "autoscale.interval");
+        this.sampleExecutor = Executors.newFixedThreadPool(DrillOnYarnConfig.getInt(config, "autoscale.sample.threads"),
+                new ThreadFactoryBuilder().setNameFormat("autoscale-sample-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("autoscaler").setDaemon(true).build());
+    }
+
+    /**
+     * 重新读取上下限、稳定采样数、冷却时间以及扩缩容策略的参数，采样间隔不能在运行中修改
+     */
+    public synchronized void reconfigure(Properties config) {
+        min = DrillOnYarnConfig.getInt(config, "autoscale.min");
+        // 没有配置autoscale.max时最多扩容到containers.num
+        max = DrillOnYarnConfig.getInt(config,
+                DrillOnYarnConfig.isSet(config, "autoscale.max") ? "autoscale.max" : "containers.num");
+        stableSamples = DrillOnYarnConfig.getInt(config, "autoscale.stable.samples");
+        upCooldown = DrillOnYarnConfig.getLong(config, "autoscale.up.cooldown") * 1000;
+        downCooldown = DrillOnYarnConfig.getLong(config, "autoscale.down.cooldown") * 1000;
+        resizeTimeout = DrillOnYarnConfig.getLong(config, "autoscale.resize.timeout") * 1000;
+        policy.init(config);
+    }
+
+    public static ScalingPolicy createPolicy(Properties config) {
+        String policyClass = DrillOnYarnConfig.getString(config, "autoscale.policy");
+        ScalingPolicy policy;
+        try {
+            policy = (ScalingPolicy) Class.forName(policyClass).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("create scaling policy " + policyClass + " error", e);
+        }
+        policy.init(config);
+        return policy;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evaluate();
+                } catch (RuntimeException e) {
+                    EventLog.warn("autoscale.failed").error(e).log();
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 执行一轮采样和决策，返回本轮调整后的目标个数
+     */
+    public synchronized int evaluate() {
+        Map<String, Object> progress = amrmCallbackHandler.getResizeProgress();
+        int current = (Integer) progress.get("target");
+        // 只等待自己上一次调整发出的请求和停止，最多等resize.timeout；更早的请求(例如指定了已经满载节点的替换请求)
+        // 和超时后仍未完成的调整不再阻塞决策
+        long now = System.currentTimeMillis();
+        if (lastScaleTime > 0 && now - lastScaleTime < resizeTimeout
+                && (amrmCallbackHandler.getPendingRequests(lastScaleTime) > 0 || !progress.get("releasing").equals(0))) {
+            return current;
+        }
+
+        List<DrillbitMetrics> metrics = sampleAll();
+        int desired = Math.max(min, Math.min(max, policy.desiredSize(current, metrics)));
+        int direction = Integer.signum(desired - current);
+        if (direction == 0) {
+            lastDirection = 0;
+            directionCount = 0;
+            return current;
+        }
+        directionCount = direction == lastDirection ? directionCount + 1 : 1;
+        lastDirection = direction;
+        long cooldown = direction > 0 ? upCooldown : downCooldown;
+        if (directionCount < stableSamples || now - lastScaleTime < cooldown) {
+            return current;
+        }
+
+        EventLog.info("autoscale.resize").with("from", current).with("to", desired).with("samples", metrics.size()).log();
+        // 在发出请求之前取时间，这次调整的请求时间都不早于lastScaleTime
+        long scaleTime = System.currentTimeMillis();
+        amrmCallbackHandler.resize(desired);
+        lastScaleTime = scaleTime;
+        directionCount = 0;
+        return desired;
+    }
+
+    private List<DrillbitMetrics> sampleAll() {
+        List<Future<DrillbitMetrics>> futures = new ArrayList<>();
+        for (final ContainerInfo containerInfo : amrmCallbackHandler.getRunningContainers()) {
+            futures.add(sampleExecutor.submit(() -> sampler.sample(containerInfo.getHost())));
+        }
+        List<DrillbitMetrics> metrics = new ArrayList<>();
+        for (Future<DrillbitMetrics> future : futures) {
+            try {
+                metrics.add(future.get());
+            } catch (ExecutionException e) {
+                EventLog.warn("autoscale.sample.failed").error(e.getCause()).log();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return metrics;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        sampleExecutor.shutdownNow();
+    }
+}
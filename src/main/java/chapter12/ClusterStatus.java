@@ -0,0 +1,64 @@
+package chapter12;
+
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * drillbit集群状态的版本号和最近退出的Container记录，状态每变化一次版本号加一，
+ * 客户端带着上次看到的版本号长轮询，状态变化后立即返回
+ *
+ * @author 徐洁阳
+ */
+public class ClusterStatus {
+    private static final int MAX_COMPLETED = 50;
+
+    private final Deque<Map<String, Object>> completedContainers = new ArrayDeque<>();
+    private long version;
+
+    public synchronized void changed() {
+        version++;
+        notifyAll();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * 等待版本号不再等于knownVersion，最多等待timeout毫秒，返回当前版本号
+     */
+    public synchronized long awaitChange(long knownVersion, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (version == knownVersion && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return version;
+    }
+
+    public synchronized void recordCompleted(ContainerInfo containerInfo, ContainerStatus status) {
+        Map<String, Object> completed = new LinkedHashMap<>();
+        completed.put("containerId", status.getContainerId().toString());
+        completed.put("host", containerInfo == null ? null : containerInfo.getHost());
+        completed.put("startTime", containerInfo == null ? 0 : containerInfo.getStartTime());
+        completed.put("finishTime", System.currentTimeMillis());
+        completed.put("exitStatus", status.getExitStatus());
+        completed.put("diagnostics", status.getDiagnostics());
+        completedContainers.addFirst(completed);
+        while (completedContainers.size() > MAX_COMPLETED) {
+            completedContainers.pollLast();
+        }
+        changed();
+    }
+
+    public synchronized List<Map<String, Object>> getCompletedContainers() {
+        return new ArrayList<>(completedContainers);
+    }
+}
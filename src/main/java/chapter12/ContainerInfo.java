@@ -0,0 +1,251 @@
+package chapter12;
+
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.NodeId;
+
+import java.util.Objects;
+
+/**
+ * AM中记录的一个drillbit Container，AMRM和NM的回调线程、启动线程以及就绪探测线程会并发地更新它。
+ * 生命周期：Container请求(requested) -> allocated -> launching -> started(NM已启动进程) -> ready(端口探测通过)
+ * -> draining/superseded -> quiescing(等待查询结束) -> releasing -> 完成后从AM中移除(stopped)，standby Container在提升前停留在standby
+ *
+ * @author 徐洁阳
+ */
+public class ContainerInfo {
+    private final ContainerId containerId;
+    private final NodeId nodeId;
+    private final DrillbitProfile profile;
+    private final long allocateTime;
+    private volatile long launchTime;
+    private volatile long startTime;
+    private volatile long readyTime;
+    private volatile boolean releasing;
+    private volatile boolean quiescing;
+    private volatile long drainStartTime;
+    private volatile boolean standby;
+    private volatile boolean superseded;
+    private volatile ContainerInfo replaces;
+    private volatile ContainerInfo replacement;
+    private volatile String version;
+    private volatile MemoryPartition memoryPartition;
+    private volatile boolean memoryHigh;
+    private final boolean adopted;
+
+    public ContainerInfo(ContainerId containerId, NodeId nodeId, DrillbitProfile profile) {
+        this(containerId, nodeId, profile, System.currentTimeMillis(), false);
+    }
+
+    /**
+     * adopted为true表示Container由上一个AM attempt启动，当前AM的NMClient不能停止它，只能通过RM释放
+     */
+    public ContainerInfo(ContainerId containerId, NodeId nodeId, DrillbitProfile profile, long allocateTime,
+                         boolean adopted) {
+        this.containerId = containerId;
+        this.nodeId = nodeId;
+        this.profile = profile;
+        this.allocateTime = allocateTime;
+        this.adopted = adopted;
+    }
+
+    public ContainerId getContainerId() {
+        return containerId;
+    }
+
+    public NodeId getNodeId() {
+        return nodeId;
+    }
+
+    public DrillbitProfile getProfile() {
+        return profile;
+    }
+
+    public String getHost() {
+        return nodeId.getHost();
+    }
+
+    public long getAllocateTime() {
+        return allocateTime;
+    }
+
+    public long getLaunchTime() {
+        return launchTime;
+    }
+
+    public void setLaunchTime(long launchTime) {
+        this.launchTime = launchTime;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * drillbit的用户端口和HTTP端口都可以访问的时间，0表示还没有就绪
+     */
+    public long getReadyTime() {
+        return readyTime;
+    }
+
+    public void setReadyTime(long readyTime) {
+        this.readyTime = readyTime;
+    }
+
+    public boolean isReady() {
+        return readyTime > 0;
+    }
+
+    public boolean isReleasing() {
+        return releasing;
+    }
+
+    public void setReleasing(boolean releasing) {
+        this.releasing = releasing;
+    }
+
+    /**
+     * 已经决定停止，正在等待drillbit上运行和排队的查询结束，期间同时是releasing
+     */
+    public boolean isQuiescing() {
+        return quiescing;
+    }
+
+    public void setQuiescing(boolean quiescing) {
+        this.quiescing = quiescing;
+    }
+
+    public boolean isDraining() {
+        return drainStartTime > 0;
+    }
+
+    public long getDrainStartTime() {
+        return drainStartTime;
+    }
+
+    public void setDrainStartTime(long drainStartTime) {
+        this.drainStartTime = drainStartTime;
+    }
+
+    /**
+     * standby Container已经本地化了Drill，但启动脚本在等待AM提升，drillbit进程还没有启动
+     */
+    public boolean isStandby() {
+        return standby;
+    }
+
+    public void setStandby(boolean standby) {
+        this.standby = standby;
+    }
+
+    /**
+     * 滚动升级中被新版本替换的drillbit：仍然处理查询，由升级流程在新版本drillbit就绪后停止，不按节点排空的规则停止
+     */
+    public boolean isSuperseded() {
+        return superseded;
+    }
+
+    public void setSuperseded(boolean superseded) {
+        this.superseded = superseded;
+    }
+
+    /**
+     * 这个drillbit替换的draining drillbit，自己就绪后停止它
+     */
+    public ContainerInfo getReplaces() {
+        return replaces;
+    }
+
+    public void setReplaces(ContainerInfo replaces) {
+        this.replaces = replaces;
+    }
+
+    /**
+     * draining drillbit的替换，null表示还没有分配到替换
+     */
+    public ContainerInfo getReplacement() {
+        return replacement;
+    }
+
+    public void setReplacement(ContainerInfo replacement) {
+        this.replacement = replacement;
+    }
+
+    /**
+     * 启动时使用的Drill版本，即drill.archive.name
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * 启动时注入环境变量的内存划分，接管的drillbit在第一次检查内存时按profile的规格计算
+     */
+    public MemoryPartition getMemoryPartition() {
+        return memoryPartition;
+    }
+
+    public void setMemoryPartition(MemoryPartition memoryPartition) {
+        this.memoryPartition = memoryPartition;
+    }
+
+    /**
+     * 最近一次采样时JVM占用的内存接近Container的上限
+     */
+    public boolean isMemoryHigh() {
+        return memoryHigh;
+    }
+
+    public void setMemoryHigh(boolean memoryHigh) {
+        this.memoryHigh = memoryHigh;
+    }
+
+    public boolean isAdopted() {
+        return adopted;
+    }
+
+    public String getState() {
+        if (quiescing) {
+            return "quiescing";
+        }
+        if (releasing) {
+            return "releasing";
+        }
+        if (superseded) {
+            return "superseded";
+        }
+        if (isDraining()) {
+            return "draining";
+        }
+        if (standby) {
+            return "standby";
+        }
+        if (readyTime > 0) {
+            return "ready";
+        }
+        if (startTime > 0) {
+            return "started";
+        }
+        return launchTime > 0 ? "launching" : "allocated";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ContainerInfo that = (ContainerInfo) o;
+        return Objects.equals(containerId, that.containerId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(containerId);
+    }
+}
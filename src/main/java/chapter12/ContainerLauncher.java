@@ -0,0 +1,177 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * drillbit Container的启动流水线：AMRM回调线程只把分配到的Container放进队列，
+ * 由启动线程池构建启动上下文并调用startContainerAsync，同一个NodeManager上同时启动的Container数有上限，
+ * 直到NM回调onContainerStarted或onStartContainerError才释放。
+ * 节点达到上限时Container在该节点的等待队列中排队，不占用启动线程，名额释放后再重新提交；
+ * 构建上下文或调用startContainerAsync失败时和onStartContainerError一样释放Container并交给恢复流程
+ *
+ * @author 徐洁阳
+ */
+public class ContainerLauncher {
+    private final NMClientAsync nmClientAsync;
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final DrillbitLaunchTemplate launchTemplate;
+    private final int nodeConcurrency;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, NodeSlots> nodeSlots = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Map<ContainerId, String> launchingContainers = new ConcurrentHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong launched;
+    private final AtomicLong failed;
+    private final long createTime = System.currentTimeMillis();
+    private final LatencyHistogram allocationToLaunch;
+
+    /**
+     * 一个节点上正在启动的Container数和等待名额的Container
+     */
+    private static class NodeSlots {
+        private int launching;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+    }
+
+    public ContainerLauncher(NMClientAsync nmClientAsync, AMRMCallbackHandler amrmCallbackHandler,
+                             DrillbitLaunchTemplate launchTemplate, int threads, int nodeConcurrency, AMMetrics metrics) {
+        this.nmClientAsync = nmClientAsync;
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.launchTemplate = launchTemplate;
+        this.nodeConcurrency = nodeConcurrency;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("drillbit-launcher-%d").setDaemon(true).build());
+        this.allocationToLaunch = metrics.histogram("drillbit_allocation_to_launch_ms",
+                "Time from container allocation to calling startContainerAsync");
+        metrics.gauge("launcher_queue_depth", "Allocated containers waiting for a launcher thread", this::getQueueDepth);
+        metrics.gauge("launcher_node_waiting", "Containers waiting for a launch slot on their node", waiting::get);
+        metrics.gauge("launcher_launching", "Containers started but not yet confirmed by the NodeManager", this::getLaunchingCount);
+        this.launched = metrics.counter("launcher_launched_total", "Containers confirmed started by the NodeManager");
+        this.failed = metrics.counter("launcher_failed_total", "Containers that failed to start");
+    }
+
+    public void launch(final Container container, final ContainerInfo containerInfo) {
+        submitted.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doLaunch(container, containerInfo);
+            }
+        });
+    }
+
+    private void doLaunch(final Container container, final ContainerInfo containerInfo) {
+        String host = container.getNodeId().getHost();
+        NodeSlots slots = nodeSlots.computeIfAbsent(host, k -> new NodeSlots());
+        synchronized (slots) {
+            if (slots.launching >= nodeConcurrency) {
+                slots.waiting.add(() -> doLaunch(container, containerInfo));
+                waiting.incrementAndGet();
+                return;
+            }
+            slots.launching++;
+        }
+        boolean registered = false;
+        try {
+            ContainerLaunchContext containerContext = launchTemplate.newLaunchContext(container, containerInfo);
+            launchingContainers.put(container.getId(), host);
+            registered = true;
+            containerInfo.setLaunchTime(System.currentTimeMillis());
+            allocationToLaunch.record(containerInfo.getLaunchTime() - containerInfo.getAllocateTime());
+            nmClientAsync.startContainerAsync(container, containerContext);
+        } catch (RuntimeException e) {
+            // 已登记时名额可能已经由NM回调释放，只有自己移除登记才释放，避免重复释放
+            if (!registered || launchingContainers.remove(container.getId()) != null) {
+                releaseSlot(host);
+                failed.incrementAndGet();
+                amrmCallbackHandler.onContainerStartFailed(container.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * NM回调通知启动结束，释放该节点的启动名额
+     */
+    public void onLaunchFinished(ContainerId containerId, boolean success) {
+        String host = launchingContainers.remove(containerId);
+        if (host == null) {
+            return;
+        }
+        releaseSlot(host);
+        if (success) {
+            launched.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        if (launchingContainers.isEmpty() && executor.getQueue().isEmpty() && waiting.get() == 0) {
+            EventLog.info("launcher.idle").with("submitted", submitted.get()).with("launched", getLaunchedCount())
+                    .with("failed", getFailedCount()).with("launchesPerSecond", String.format("%.2f", getLaunchRate())).log();
+        }
+    }
+
+    /**
+     * 释放节点的一个名额，有Container在等待该节点时把它重新提交给启动线程池
+     */
+    private void releaseSlot(String host) {
+        NodeSlots slots = nodeSlots.get(host);
+        Runnable next;
+        synchronized (slots) {
+            slots.launching--;
+            next = slots.waiting.poll();
+        }
+        if (next != null) {
+            waiting.decrementAndGet();
+            if (!executor.isShutdown()) {
+                executor.execute(next);
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getLaunchingCount() {
+        return launchingContainers.size();
+    }
+
+    public long getLaunchedCount() {
+        return launched.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * AM启动以来平均每秒成功启动的Container数
+     */
+    public double getLaunchRate() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - createTime);
+        return launched.get() * 1000.0 / elapsed;
+    }
+
+    public String report() {
+        return String.format("launcher submitted %d, queued %d, node waiting %d, launching %d, launched %d, failed %d, %.2f launches/s",
+                submitted.get(), getQueueDepth(), waiting.get(), getLaunchingCount(), getLaunchedCount(), getFailedCount(), getLaunchRate());
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,231 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 替换异常退出的drillbit：按指数退避重新申请Container，同一节点在时间窗口内失败次数过多时加入黑名单，
+ * 黑名单在一个时间窗口后解除，只有启动失败、磁盘故障和进程非0退出算作节点的失败，
+ * 整个集群在时间窗口内的失败次数超过预算后暂停替换，直到最早的失败移出时间窗口，
+ * 并统计从丢失到替换的drillbit就绪的恢复时间，恢复时间的分布注册为recovery_restore_ms直方图
+ *
+ * @author 徐洁阳
+ */
+public class ContainerRecovery {
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final ContainerRequester containerRequester;
+    private final long baseBackoff;
+    private final long maxBackoff;
+    private final int nodeMaxFailures;
+    private final int maxFailures;
+    private final long failureWindow;
+    private final ScheduledExecutorService scheduler;
+    private final LatencyHistogram restoreTime;
+
+    private final Map<String, Deque<Long>> nodeFailures = new HashMap<>();
+    private final Set<String> blacklistedHosts = new HashSet<>();
+    private final Deque<Long> failureTimes = new ArrayDeque<>();
+    private final Deque<Long> lostTimes = new ArrayDeque<>();
+    private int consecutiveFailures;
+    private boolean budgetExhausted;
+
+    private long restoredCount;
+    private long lastRestoreMillis;
+    private long maxRestoreMillis;
+    private long totalRestoreMillis;
+
+    public ContainerRecovery(AMRMCallbackHandler amrmCallbackHandler, ContainerRequester containerRequester,
+                             Properties config, AMMetrics metrics) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.containerRequester = containerRequester;
+        this.baseBackoff = DrillOnYarnConfig.getLong(config, "recovery.backoff.base");
+        this.maxBackoff = DrillOnYarnConfig.getLong(config, "recovery.backoff.max");
+        this.nodeMaxFailures = DrillOnYarnConfig.getInt(config, "recovery.node.max.failures");
+        this.maxFailures = DrillOnYarnConfig.getInt(config, "recovery.max.failures");
+        this.failureWindow = DrillOnYarnConfig.getLong(config, "recovery.failure.window") * 1000;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("container-recovery").setDaemon(true).build());
+        this.restoreTime = metrics.histogram("recovery_restore_ms",
+                "Time from losing a drillbit to its replacement becoming ready");
+    }
+
+    /**
+     * drillbit异常退出或启动失败，exitStatus为null表示启动失败
+     */
+    public synchronized void onContainerLost(ContainerId containerId, String host, Integer exitStatus) {
+        long now = System.currentTimeMillis();
+        lostTimes.addLast(now);
+
+        if (isNodeFailure(exitStatus)) {
+            Deque<Long> failures = nodeFailures.computeIfAbsent(host, k -> new ArrayDeque<>());
+            failures.addLast(now);
+            pruneFailures(failures, now);
+            if (failures.size() >= nodeMaxFailures && !containerRequester.isBlacklisted(host)) {
+                EventLog.warn("node.blacklisted").with("host", host).with("failures", failures.size()).log();
+                blacklist(host);
+            }
+        }
+
+        failureTimes.addLast(now);
+        pruneFailures(failureTimes, now);
+        if (failureTimes.size() > maxFailures) {
+            if (!budgetExhausted) {
+                EventLog.error("recovery.budget.exhausted").with("failures", failureTimes.size())
+                        .with("windowSeconds", failureWindow / 1000).with("maxFailures", maxFailures).log();
+                budgetExhausted = true;
+                scheduleBudgetCheck(now);
+            }
+            return;
+        }
+
+        consecutiveFailures++;
+        long backoff = Math.min(maxBackoff, baseBackoff << Math.min(consecutiveFailures - 1, 20));
+        EventLog.info("recovery.scheduled").with("containerId", containerId).with("host", host)
+                .with("backoffMillis", backoff).log();
+        scheduleReplacement(backoff);
+    }
+
+    /**
+     * 启动失败、磁盘故障和进程非0退出算作节点的失败；被抢占、超出内存限制被杀和被AM/RM停止都不是节点的问题
+     */
+    private static boolean isNodeFailure(Integer exitStatus) {
+        return exitStatus == null || exitStatus == ContainerExitStatus.DISKS_FAILED || exitStatus > 0;
+    }
+
+    private void pruneFailures(Deque<Long> failures, long now) {
+        while (!failures.isEmpty() && failures.peekFirst() < now - failureWindow) {
+            failures.pollFirst();
+        }
+    }
+
+    /**
+     * AM重启后恢复上一次运行记录的黑名单，从现在开始重新计算解除时间
+     */
+    public synchronized void restoreBlacklist(String host) {
+        blacklist(host);
+    }
+
+    /**
+     * 加入黑名单，一个时间窗口后节点上的失败都已过期，解除黑名单
+     */
+    private void blacklist(final String host) {
+        blacklistedHosts.add(host);
+        containerRequester.blacklist(host);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expireBlacklist(host);
+            }
+        }, failureWindow, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expireBlacklist(String host) {
+        nodeFailures.remove(host);
+        // 只解除自己加入的黑名单，NodeHealthTracker因节点不健康加入的由它在节点恢复时解除
+        if (blacklistedHosts.remove(host)) {
+            EventLog.info("node.unblacklisted").with("host", host).with("windowSeconds", failureWindow / 1000).log();
+            containerRequester.unblacklist(host);
+            scheduleReplacement(0);
+        }
+    }
+
+    /**
+     * 在最早的失败移出时间窗口时检查预算，预算暂停期间丢失的drillbit没有安排替换，恢复后一起补充
+     */
+    private void scheduleBudgetCheck(long now) {
+        long delay = Math.max(0, failureTimes.peekFirst() + failureWindow - now) + 1;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkBudget();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void checkBudget() {
+        long now = System.currentTimeMillis();
+        pruneFailures(failureTimes, now);
+        if (failureTimes.size() > maxFailures) {
+            scheduleBudgetCheck(now);
+            return;
+        }
+        budgetExhausted = false;
+        consecutiveFailures = 0;
+        EventLog.info("recovery.budget.restored").with("failures", failureTimes.size())
+                .with("waitingRestore", lostTimes.size()).log();
+        scheduleReplacement(0);
+    }
+
+    private void scheduleReplacement(long delay) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    amrmCallbackHandler.ensureCapacity();
+                } catch (RuntimeException e) {
+                    // 空闲节点不够时由ContainerRequester刷新节点列表后补充申请，这里只处理其他异常
+                    EventLog.warn("recovery.request.failed").with("retryMillis", maxBackoff).error(e).log();
+                    scheduleReplacement(maxBackoff);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 有drillbit就绪，如果有等待恢复的丢失记录则统计恢复时间
+     */
+    public synchronized void onContainerReady() {
+        consecutiveFailures = 0;
+        Long lostTime = lostTimes.pollFirst();
+        if (lostTime == null) {
+            return;
+        }
+        long restoreMillis = System.currentTimeMillis() - lostTime;
+        restoredCount++;
+        lastRestoreMillis = restoreMillis;
+        maxRestoreMillis = Math.max(maxRestoreMillis, restoreMillis);
+        totalRestoreMillis += restoreMillis;
+        restoreTime.record(restoreMillis);
+        EventLog.info("recovery.restored").with("restoreMillis", restoreMillis).log();
+    }
+
+    /**
+     * 缩容后不再需要恢复的丢失记录
+     */
+    public synchronized void trimLost(int missing) {
+        while (lostTimes.size() > Math.max(0, missing)) {
+            lostTimes.pollLast();
+        }
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("waitingRestore", lostTimes.size());
+        metrics.put("failuresInWindow", failureTimes.size());
+        metrics.put("failureBudget", maxFailures);
+        metrics.put("budgetExhausted", budgetExhausted);
+        metrics.put("blacklistedNodes", containerRequester.getBlacklistedHosts());
+        metrics.put("restoredCount", restoredCount);
+        metrics.put("lastRestoreMillis", lastRestoreMillis);
+        metrics.put("maxRestoreMillis", maxRestoreMillis);
+        metrics.put("avgRestoreMillis", restoredCount == 0 ? 0 : totalRestoreMillis / restoredCount);
+        return metrics;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
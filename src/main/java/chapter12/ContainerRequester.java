@@ -0,0 +1,166 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 向RM申请drillbit Container，drillbit的端口是固定的，所以每个节点最多只放一个drillbit。
+ * 运行中节点的列表和放置策略的数据(例如热点数据块分布)由后台线程定期刷新，申请时只读取缓存，不在回调线程上访问RM或HDFS
+ *
+ * @author 徐洁阳
+ */
+public class ContainerRequester {
+    private final AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync;
+    private final YarnClient yarnClient;
+    private final PlacementPolicy placementPolicy;
+    private final Set<String> blacklistedHosts = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private volatile List<NodeReport> nodeReports = Collections.emptyList();
+    private volatile boolean shortage;
+
+    public ContainerRequester(AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync, YarnClient yarnClient,
+                              PlacementPolicy placementPolicy) {
+        this.amrmClientAsync = amrmClientAsync;
+        this.yarnClient = yarnClient;
+        this.placementPolicy = placementPolicy;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("node-refresh").setDaemon(true).build());
+    }
+
+    /**
+     * 先同步刷新一次，之后每interval毫秒在后台刷新。上次申请时空闲节点不够，刷新后调用onShortage补充申请
+     */
+    public void start(long interval, Runnable onShortage) {
+        refresh();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                    if (shortage) {
+                        shortage = false;
+                        onShortage.run();
+                    }
+                } catch (RuntimeException e) {
+                    EventLog.warn("nodes.refresh.failed").error(e).log();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    public static PlacementPolicy createPlacementPolicy(Properties config, Configuration hadoopConfig) {
+        String policyClass = DrillOnYarnConfig.getString(config, "placement.policy");
+        PlacementPolicy policy;
+        try {
+            policy = (PlacementPolicy) Class.forName(policyClass).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("create placement policy " + policyClass + " error", e);
+        }
+        policy.init(config, hadoopConfig);
+        return policy;
+    }
+
+    /**
+     * 由放置策略在不属于excludedHosts、满足profile约束的运行中节点上选出count个节点，按profile的资源和优先级申请Container。
+     * 请求指定了节点，RM不允许再带节点标签表达式，所以节点标签只作为选择节点的条件。
+     * 空闲节点不够时只申请选出的节点，其余的等下次刷新节点列表后再申请
+     */
+    public synchronized List<AMRMClient.ContainerRequest> request(DrillbitProfile profile, int count, Set<String> excludedHosts) {
+        List<NodeReport> candidates = new ArrayList<>();
+        Map<String, Integer> rackLoad = new HashMap<>();
+        for (NodeReport nodeReport : nodeReports) {
+            String host = nodeReport.getNodeId().getHost();
+            if (excludedHosts.contains(host)) {
+                rackLoad.merge(nodeReport.getRackName(), 1, Integer::sum);
+            } else if (!blacklistedHosts.contains(host) && profile.accepts(nodeReport)) {
+                candidates.add(nodeReport);
+            }
+        }
+        List<NodeReport> selected = placementPolicy.select(candidates, count, profile.getCapability(), rackLoad);
+        if (count > selected.size()) {
+            EventLog.warn("requests.deferred").with("profile", profile.getName()).with("need", count)
+                    .with("free", selected.size()).log();
+            shortage = true;
+        }
+
+        List<AMRMClient.ContainerRequest> containerRequests = new ArrayList<>();
+        for (NodeReport nodeReport : selected) {
+            AMRMClient.ContainerRequest containerRequest = new AMRMClient.ContainerRequest(profile.getCapability(),
+                    new String[] {nodeReport.getNodeId().getHost()},
+                    null, profile.getPriority(), false);
+            amrmClientAsync.addContainerRequest(containerRequest);
+            containerRequests.add(containerRequest);
+        }
+        return containerRequests;
+    }
+
+    /**
+     * 用新的配置重新初始化放置策略，和request互斥
+     */
+    public synchronized void reconfigure(Properties config, Configuration hadoopConfig) {
+        placementPolicy.init(config, hadoopConfig);
+    }
+
+    public void remove(AMRMClient.ContainerRequest containerRequest) {
+        amrmClientAsync.removeContainerRequest(containerRequest);
+    }
+
+    public void blacklist(String host) {
+        if (blacklistedHosts.add(host)) {
+            amrmClientAsync.updateBlacklist(Collections.singletonList(host), null);
+        }
+    }
+
+    public void unblacklist(String host) {
+        if (blacklistedHosts.remove(host)) {
+            amrmClientAsync.updateBlacklist(null, Collections.singletonList(host));
+        }
+    }
+
+    public boolean isBlacklisted(String host) {
+        return blacklistedHosts.contains(host);
+    }
+
+    public Set<String> getBlacklistedHosts() {
+        return new TreeSet<>(blacklistedHosts);
+    }
+
+    /**
+     * 获取运行中节点的列表并刷新放置策略的数据，失败时保留上一次的结果
+     */
+    private void refresh() {
+        try {
+            List<NodeReport> running = new ArrayList<>(yarnClient.getNodeReports(NodeState.RUNNING));
+            EventLog.debug("nodes.running").with("count", running.size()).log();
+            nodeReports = running;
+        } catch (YarnException | IOException e) {
+            EventLog.warn("nodes.refresh.failed").error(e).log();
+        }
+        placementPolicy.refresh();
+    }
+}
@@ -0,0 +1,111 @@
+package chapter12;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.apache.hadoop.yarn.util.Apps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Drill的分层本地化：PUBLIC可见的Drill安装包作为不变的基础层，
+ * site目录(drill-override.conf、drill-env.sh、jars/)和UDF、存储插件jar作为APPLICATION可见的小层叠加在上面；
+ * 开启drill.local.dirs.enabled时再加上drillbit的启动脚本，把spill和临时目录分散到Container的所有本地磁盘上
+ *
+ * @author 徐洁阳
+ */
+public class DrillLayers {
+    public static final String SITE_LINK_NAME = "site";
+    public static final String LAUNCH_SCRIPT_NAME = "drillbit-launch.sh";
+
+    /**
+     * 叠加层按文件名链接到Container的工作目录，文件名不能重复，也不能和安装包、site层或启动脚本同名，否则提交时失败
+     */
+    public static List<String> overlayPaths(Properties config) {
+        Set<String> names = new HashSet<>(Arrays.asList(
+                FilenameUtils.getName(config.getProperty("drill.path")), SITE_LINK_NAME, LAUNCH_SCRIPT_NAME));
+        List<String> paths = new ArrayList<>();
+        for (String path : StringUtils.split(DrillOnYarnConfig.getString(config, "drill.overlay.paths"), ',')) {
+            if (StringUtils.isNotBlank(path)) {
+                if (!names.add(FilenameUtils.getName(path.trim()))) {
+                    throw new IllegalArgumentException("drill.overlay.paths " + path.trim() + " has the same file name as "
+                            + "another overlay, the drill archive, " + SITE_LINK_NAME + " or " + LAUNCH_SCRIPT_NAME);
+                }
+                paths.add(path.trim());
+            }
+        }
+        return paths;
+    }
+
+    public static Map<String, LocalResource> buildLocalResources(FileSystem fileSystem, Properties config) throws IOException {
+        Map<String, LocalResource> localResources = new LinkedHashMap<>();
+        FileStatus base = fileSystem.getFileStatus(new Path(config.getProperty("drill.upload.path")));
+        putUnique(localResources, base.getPath().getName(),
+                YarnUtil.buildLocalResource(base, LocalResourceType.ARCHIVE, LocalResourceVisibility.PUBLIC));
+
+        String site = config.getProperty("drill.site.upload.path");
+        if (StringUtils.isNotBlank(site)) {
+            FileStatus siteStatus = fileSystem.getFileStatus(new Path(site));
+            putUnique(localResources, SITE_LINK_NAME,
+                    YarnUtil.buildLocalResource(siteStatus, LocalResourceType.ARCHIVE, LocalResourceVisibility.APPLICATION));
+        }
+
+        for (String overlay : StringUtils.split(config.getProperty("drill.overlay.upload.paths", ""), ',')) {
+            FileStatus overlayStatus = fileSystem.getFileStatus(new Path(overlay));
+            String name = overlayStatus.getPath().getName();
+            LocalResourceType type = isArchive(name) ? LocalResourceType.ARCHIVE : LocalResourceType.FILE;
+            putUnique(localResources, name, YarnUtil.buildLocalResource(overlayStatus, type, LocalResourceVisibility.APPLICATION));
+        }
+
+        String script = config.getProperty("drill.launch.upload.path");
+        if (StringUtils.isNotBlank(script)) {
+            FileStatus scriptStatus = fileSystem.getFileStatus(new Path(script));
+            putUnique(localResources, LAUNCH_SCRIPT_NAME,
+                    YarnUtil.buildLocalResource(scriptStatus, LocalResourceType.FILE, LocalResourceVisibility.APPLICATION));
+        }
+        return localResources;
+    }
+
+    /**
+     * 同名的本地化资源会互相覆盖，例如升级后的安装包和某个叠加层同名
+     */
+    private static void putUnique(Map<String, LocalResource> localResources, String name, LocalResource localResource) {
+        if (localResources.put(name, localResource) != null) {
+            throw new IllegalArgumentException("local resource " + name + " is used by more than one layer");
+        }
+    }
+
+    /**
+     * site层通过DRILL_CONF_DIR生效，jar层通过DRILL_CLASSPATH加入drillbit的classpath
+     */
+    public static void addLayerEnvironment(Map<String, String> environment, Properties config) {
+        if (StringUtils.isNotBlank(config.getProperty("drill.site.upload.path"))) {
+            environment.put("DRILL_CONF_DIR", ApplicationConstants.Environment.PWD.$() + "/" + SITE_LINK_NAME);
+        }
+        for (String overlay : StringUtils.split(config.getProperty("drill.overlay.upload.paths", ""), ',')) {
+            String name = new Path(overlay).getName();
+            if (name.endsWith(".jar")) {
+                Apps.addToEnvironment(environment, "DRILL_CLASSPATH", ApplicationConstants.Environment.PWD.$() + "/" + name,
+                        ApplicationConstants.CLASS_PATH_SEPARATOR);
+            }
+        }
+    }
+
+    public static boolean isArchive(String name) {
+        return name.endsWith(".tar.gz") || name.endsWith(".tgz") || name.endsWith(".tar") || name.endsWith(".zip");
+    }
+}
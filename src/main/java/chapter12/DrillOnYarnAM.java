@@ -1,22 +1,25 @@
 package chapter12;
 
-import org.apache.hadoop.yarn.api.records.NodeReport;
-import org.apache.hadoop.yarn.api.records.NodeState;
-import org.apache.hadoop.yarn.api.records.Priority;
-import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
 import org.apache.hadoop.yarn.client.api.AMRMClient;
 import org.apache.hadoop.yarn.client.api.YarnClient;
 import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
 import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.apache.hadoop.yarn.util.ConverterUtils;
 
-import javax.xml.bind.DatatypeConverter;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -28,142 +31,409 @@ import java.util.*;
 public class DrillOnYarnAM {
     private static AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync;
     private static NMClientAsync nmClientAsync;
+    private static NMCallbackHandler nmCallbackHandler;
+    private static ContainerLauncher containerLauncher;
+    private static DrillbitLaunchTemplate launchTemplate;
     private static YarnConfiguration yarnConfig;
     private static Properties appConfig;
     private static YarnClient yarnClient;
+    private static AMHttpServer httpServer;
+    private static Autoscaler autoscaler;
+    private static ContainerRecovery containerRecovery;
+    private static NodeHealthTracker nodeHealthTracker;
+    private static HeartbeatController heartbeatController;
+    private static final AMMetrics metrics = new AMMetrics();
+    private static AMStateJournal stateJournal;
+    private static ContainerRequester containerRequester;
+    private static RollingUpgrade rollingUpgrade;
+    private static ReadinessProbe readinessProbe;
+    private static EndpointRegistry endpointRegistry;
+    private static GracefulShutdown gracefulShutdown;
+    private static DrillbitDrainer drillbitDrainer;
 
     public static void main(String[] args) {
-        Map<String, String> sysEnvironment = System.getenv();
         try {
-            initAppConfig(sysEnvironment);
+            initAppConfig();
 
             yarnConfig = new YarnConfiguration();
 
+            metrics.registerJmx();
+            metrics.gauge("am_log_dropped_total", "Log events dropped because the event log buffer was full",
+                    EventLog::getDropped);
+
             AMRMCallbackHandler amrmCallbackHandler = initAMRMClientAsync();
 
             initNMClientAsync(amrmCallbackHandler);
 
-            Resource capability = createResource();
+            initContainerLauncher(amrmCallbackHandler);
+
+            List<DrillbitProfile> profiles = DrillbitProfile.parse(appConfig);
+            amrmCallbackHandler.setProfiles(profiles);
 
-            Priority priority = createPriority();
+            initHttpServer(amrmCallbackHandler);
 
-            registerAM();
+            RegisterApplicationMasterResponse registerResponse = registerAM();
 
             yarnClient = initYarnClient();
 
-            List<NodeReport> nodeReports = getNodeReports(yarnClient);
+            initContainerRequester(amrmCallbackHandler);
 
-            int containers = Integer.parseInt(appConfig.getProperty("containers.num"));
-            System.out.println("containers.num is " + containers);
-            if (containers > nodeReports.size()) {
-                throw new RuntimeException("containers num can not more than node num");
+            Map<String, Integer> targets = new LinkedHashMap<>();
+            for (DrillbitProfile profile : profiles) {
+                targets.put(profile.getName(), profile.getNum());
             }
+            amrmCallbackHandler.resize(recoverState(amrmCallbackHandler, registerResponse, targets));
+
+            stateJournal.start(DrillOnYarnConfig.getLong(appConfig, "am.state.interval"));
 
-            nodeReports = shuffleNodeReports(nodeReports, containers);
+            initEndpointRegistry(amrmCallbackHandler);
 
-            addContainerRequest(capability, priority, nodeReports, amrmCallbackHandler);
+            initGracefulShutdown(amrmCallbackHandler);
+
+            initAutoscaler(amrmCallbackHandler);
         } catch (Exception e) {
+            EventLog.error("am.start.failed").error(e).log();
+            EventLog.flush(5000);
+            stopServices();
+        }
+    }
+
+    private static void stopServices() {
+        try {
+            if (autoscaler != null) {
+                autoscaler.stop();
+            }
+            if (rollingUpgrade != null) {
+                rollingUpgrade.stop();
+            }
+            if (readinessProbe != null) {
+                readinessProbe.stop();
+            }
+            if (endpointRegistry != null) {
+                endpointRegistry.stop();
+            }
+            if (drillbitDrainer != null) {
+                drillbitDrainer.stop();
+            }
+            if (stateJournal != null) {
+                stateJournal.stop();
+            }
+            if (containerRecovery != null) {
+                containerRecovery.stop();
+            }
+            if (containerRequester != null) {
+                containerRequester.stop();
+            }
+            if (nodeHealthTracker != null) {
+                nodeHealthTracker.stop();
+            }
+            if (httpServer != null) {
+                httpServer.stop();
+            }
+            if (containerLauncher != null) {
+                containerLauncher.stop();
+            }
+            if (nmClientAsync != null) {
+                nmClientAsync.close();
+            }
+            if (amrmClientAsync != null) {
+                amrmClientAsync.close();
+            }
+            if (yarnClient != null) {
+                yarnClient.close();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
-            try {
-                if (nmClientAsync != null) {
-                    nmClientAsync.close();
-                }
-                if (amrmClientAsync != null) {
-                    amrmClientAsync.close();
-                }
-                if (yarnClient != null) {
-                    yarnClient.close();
-                }
-            } catch (IOException e1) {
-                e1.printStackTrace();
+        }
+    }
+
+    /**
+     * 所有drillbit停止后注销AM，删除状态日志和这个应用上传的配置后退出，RM不会再启动新的attempt
+     */
+    private static void finish(FinalApplicationStatus status, String diagnostics) {
+        try {
+            amrmClientAsync.unregisterApplicationMaster(status, diagnostics, null);
+            EventLog.info("am.unregistered").with("status", status).with("diagnostics", diagnostics).log();
+        } catch (YarnException | IOException e) {
+            EventLog.error("am.unregister.failed").error(e).log();
+        }
+        stateJournal.stop();
+        stateJournal.delete();
+        ApplicationId applicationId = ConverterUtils.toContainerId(
+                System.getenv(ApplicationConstants.Environment.CONTAINER_ID.name())).getApplicationAttemptId().getApplicationId();
+        Path appDir = new Path(appConfig.getProperty("fs.upload.dir") + applicationId);
+        try {
+            FileSystem.get(yarnConfig).delete(appDir, true);
+        } catch (IOException e) {
+            EventLog.warn("am.cleanup.failed").with("path", appDir).error(e).log();
+        }
+        stopServices();
+        EventLog.flush(5000);
+        System.exit(0);
+    }
+
+    /**
+     * 第二次及以后的attempt从状态日志恢复各profile的目标个数和黑名单，并接管上一个attempt还在运行的drillbit，返回目标个数
+     */
+    private static Map<String, Integer> recoverState(AMRMCallbackHandler amrmCallbackHandler,
+                                                     RegisterApplicationMasterResponse response,
+                                                     Map<String, Integer> targets) throws IOException {
+        ApplicationAttemptId attemptId = ConverterUtils.toContainerId(
+                System.getenv(ApplicationConstants.Environment.CONTAINER_ID.name())).getApplicationAttemptId();
+        String stateDir = StringUtils.defaultIfBlank(DrillOnYarnConfig.getString(appConfig, "am.state.dir"),
+                appConfig.getProperty("fs.upload.dir") + "state/");
+        Path journalPath = new Path(stateDir, attemptId.getApplicationId() + ".json");
+        stateJournal = new AMStateJournal(FileSystem.get(yarnConfig), journalPath, amrmCallbackHandler, containerRequester);
+        List<Container> previousContainers = response.getContainersFromPreviousAttempts();
+        if (attemptId.getAttemptId() == 1 && previousContainers.isEmpty()) {
+            return targets;
+        }
+
+        Map<String, Object> journal = stateJournal.load();
+        @SuppressWarnings("unchecked")
+        List<String> blacklist = (List<String>) journal.getOrDefault("blacklist", Collections.emptyList());
+        for (String host : blacklist) {
+            containerRecovery.restoreBlacklist(host);
+        }
+        amrmCallbackHandler.adopt(previousContainers, journal);
+        @SuppressWarnings("unchecked")
+        Map<String, Number> journaledTargets = (Map<String, Number>) journal.getOrDefault("targets", Collections.emptyMap());
+        for (Map.Entry<String, Number> entry : journaledTargets.entrySet()) {
+            if (targets.containsKey(entry.getKey())) {
+                targets.put(entry.getKey(), entry.getValue().intValue());
             }
         }
+        EventLog.info("am.recovered").with("attempt", attemptId.getAttemptId())
+                .with("previousContainers", previousContainers.size()).with("journaled", !journal.isEmpty())
+                .with("targets", new TreeMap<>(targets)).log();
+        return targets;
     }
 
-    private static void addContainerRequest(Resource capability, Priority priority, List<NodeReport> nodeReports,
-                                            AMRMCallbackHandler amrmCallbackHandler) {
-        for (NodeReport containerReport : nodeReports) {
-            AMRMClient.ContainerRequest containerRequest = new AMRMClient.ContainerRequest(capability,
-                    new String[] {containerReport.getNodeId().getHost()},
-                    null, priority, false);
-            amrmCallbackHandler.getContainerRequests().add(containerRequest);
-            amrmClientAsync.addContainerRequest(containerRequest);
+    private static void initAutoscaler(AMRMCallbackHandler amrmCallbackHandler) {
+        if (!DrillOnYarnConfig.getBoolean(appConfig, "autoscale.enabled")) {
+            return;
         }
+        autoscaler = new Autoscaler(amrmCallbackHandler, createSampler(), Autoscaler.createPolicy(appConfig), appConfig);
+        autoscaler.start();
+        EventLog.info("am.autoscaler.started").log();
     }
 
-    private static List<NodeReport> shuffleNodeReports(List<NodeReport> nodeReports, int containers) {
-        Collections.shuffle(nodeReports);
-        return new ArrayList<>(nodeReports.subList(0, containers));
+    private static void initEndpointRegistry(AMRMCallbackHandler amrmCallbackHandler) {
+        endpointRegistry = new EndpointRegistry(amrmCallbackHandler, createSampler(), appConfig);
+        if (launchTemplate.getMemoryPolicy() != null) {
+            endpointRegistry.setMemoryMonitor(new MemoryMonitor(launchTemplate.getMemoryPolicy(), appConfig));
+        }
+        // 客户端通过DrillbitSelector读取，选择负载最低的drillbit建立连接
+        httpServer.addHandler("/endpoints", (method, params) -> endpointRegistry.getEndpoints());
+        endpointRegistry.start();
     }
 
-    private static List<NodeReport> getNodeReports(YarnClient yarnClient) {
-        List<NodeReport> nodeReports;
-        try {
-            nodeReports = yarnClient.getNodeReports(NodeState.RUNNING);
-            System.out.println("running node reports size is " + nodeReports.size());
-            System.out.println("running node reports is " + nodeReports);
-        } catch (YarnException | IOException e) {
-            throw new RuntimeException("get running node report error", e);
+    private static void initGracefulShutdown(AMRMCallbackHandler amrmCallbackHandler) {
+        gracefulShutdown = new GracefulShutdown(amrmCallbackHandler, drillbitDrainer, appConfig, () -> {
+            if (autoscaler != null) {
+                autoscaler.stop();
+            }
+            rollingUpgrade.stop();
+        }, DrillOnYarnAM::finish);
+        amrmCallbackHandler.setGracefulShutdown(gracefulShutdown);
+        // POST开始有序停止，可以带timeout参数(秒)，GET查看停止进度和每个drillbit的排空报告
+        httpServer.addHandler("/shutdown", (method, params) -> method.equals("POST") ? gracefulShutdown.start(params)
+                : gracefulShutdown.getReport());
+    }
+
+    private static DrillbitMetricsSampler createSampler() {
+        return new DrillbitMetricsSampler(
+                DrillOnYarnConfig.getString(appConfig, "autoscale.metrics.url"),
+                DrillOnYarnConfig.getInt(appConfig, "drill.http.port"),
+                DrillOnYarnConfig.getInt(appConfig, "autoscale.sample.timeout"));
+    }
+
+    private static void initContainerRequester(AMRMCallbackHandler amrmCallbackHandler) {
+        containerRequester = new ContainerRequester(amrmClientAsync, yarnClient,
+                ContainerRequester.createPlacementPolicy(appConfig, yarnConfig));
+        amrmCallbackHandler.setContainerRequester(containerRequester);
+        containerRequester.start(DrillOnYarnConfig.getLong(appConfig, "placement.nodes.refresh") * 1000,
+                amrmCallbackHandler::ensureCapacity);
+        containerRecovery = new ContainerRecovery(amrmCallbackHandler, containerRequester, appConfig, metrics);
+        amrmCallbackHandler.setContainerRecovery(containerRecovery);
+        httpServer.addHandler("/recovery", (method, params) -> containerRecovery.getMetrics());
+        nodeHealthTracker = new NodeHealthTracker(amrmCallbackHandler, containerRequester, appConfig, metrics);
+        amrmCallbackHandler.setNodeHealthTracker(nodeHealthTracker);
+        nodeHealthTracker.start();
+        if (DrillOnYarnConfig.getBoolean(appConfig, "probe.enabled")) {
+            readinessProbe = new ReadinessProbe(amrmCallbackHandler, appConfig);
+            amrmCallbackHandler.setReadinessProbe(readinessProbe);
+            readinessProbe.start();
+        }
+        httpServer.addHandler("/nodes", (method, params) -> nodeHealthTracker.getMetrics());
+        drillbitDrainer = new DrillbitDrainer(createSampler(), appConfig);
+        amrmCallbackHandler.setDrillbitDrainer(drillbitDrainer);
+        rollingUpgrade = new RollingUpgrade(amrmCallbackHandler, launchTemplate, appConfig);
+        amrmCallbackHandler.setRollingUpgrade(rollingUpgrade);
+        // GET查看升级进度，POST带新版本的drill.path、drill.archive.name和drill.upload.path开始滚动升级
+        httpServer.addHandler("/upgrade", (method, params) -> method.equals("POST") ? rollingUpgrade.start(params)
+                : rollingUpgrade.getProgress());
+    }
+
+    private static void initHttpServer(final AMRMCallbackHandler amrmCallbackHandler) throws IOException {
+        // 只监听注册给RM的主机地址，修改集群的请求需要客户端提交时放进凭据的密钥
+        String secret = YarnUtil.readSecretFromCredentials();
+        if (secret == null) {
+            EventLog.warn("am.http.secret.missing").log();
+        }
+        httpServer = new AMHttpServer(InetAddress.getLocalHost().getHostName(),
+                DrillOnYarnConfig.getInt(appConfig, "am.http.port"), DrillOnYarnConfig.getInt(appConfig, "am.http.threads"),
+                DrillOnYarnConfig.getInt(appConfig, "am.http.long.polls"), secret);
+        // GET查看扩缩容进度，POST带containers参数调整drillbit个数，同时带profile参数时只调整这个profile
+        httpServer.addHandler("/resize", (method, params) -> {
+            if (!method.equals("POST")) {
+                return amrmCallbackHandler.getResizeProgress();
+            }
+            if (!params.containsKey("containers")) {
+                throw new IllegalArgumentException("containers is required");
+            }
+            if (params.containsKey("profile")) {
+                return amrmCallbackHandler.resize(Collections.singletonMap(params.get("profile"),
+                        Integer.parseInt(params.get("containers"))));
+            }
+            return amrmCallbackHandler.resize(Integer.parseInt(params.get("containers")));
+        });
+        // GET查看当前配置和可以重新加载的配置项，POST应用参数中的配置
+        httpServer.addHandler("/config", (method, params) -> {
+            if (method.equals("POST")) {
+                return reconfigure(amrmCallbackHandler, params);
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("config", new TreeMap<>(appConfig));
+            result.put("reloadable", DrillOnYarnConfig.getReloadableKeys());
+            return result;
+        });
+        httpServer.addHandler("/heartbeat", (method, params) -> heartbeatController.getMetrics());
+        httpServer.addTextHandler("/metrics", metrics::toPrometheus);
+        // standby Container的启动脚本轮询是否已经被提升
+        httpServer.addHandler("/standby", (method, params) -> {
+            if (!params.containsKey("containerId")) {
+                throw new IllegalArgumentException("containerId is required");
+            }
+            return amrmCallbackHandler.getStandbyState(params.get("containerId"));
+        });
+        // 带version参数时长轮询，状态变化或等待wait毫秒后返回，在长轮询线程上等待
+        httpServer.addLongPollHandler("/status", (method, params) -> amrmCallbackHandler.getStatus(
+                Long.parseLong(params.getOrDefault("version", "-1")),
+                Math.min(60000, Long.parseLong(params.getOrDefault("wait", "0")))));
+        httpServer.start();
+        EventLog.info("am.http.started").with("port", httpServer.getPort()).log();
+    }
+
+    /**
+     * 校验合并后的完整配置，全部通过才应用到心跳、放置策略、自动扩缩容和日志级别，目标个数有变化的profile立即调整
+     */
+    private static synchronized Map<String, Object> reconfigure(AMRMCallbackHandler amrmCallbackHandler,
+                                                                Map<String, String> changes) {
+        Map<String, String> changed = new TreeMap<>();
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            if (!DrillOnYarnConfig.isReloadable(entry.getKey())) {
+                throw new IllegalArgumentException(entry.getKey() + " can not be reloaded, reloadable keys are "
+                        + DrillOnYarnConfig.getReloadableKeys());
+            }
+            if (!entry.getValue().equals(appConfig.getProperty(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Properties config = new Properties();
+        config.putAll(appConfig);
+        config.putAll(changed);
+        DrillOnYarnConfig.validate(config);
+
+        appConfig.putAll(changed);
+        EventLog.configure(appConfig);
+        heartbeatController.reconfigure(appConfig);
+        containerRequester.reconfigure(appConfig, yarnConfig);
+        if (autoscaler != null) {
+            autoscaler.reconfigure(appConfig);
+        }
+        Map<String, Integer> targets = new LinkedHashMap<>();
+        boolean defaultProfile = !DrillOnYarnConfig.isSet(appConfig, "profiles");
+        for (DrillbitProfile profile : DrillbitProfile.parse(appConfig)) {
+            String key = defaultProfile ? "containers.num" : "profile." + profile.getName() + ".num";
+            if (changed.containsKey(key)) {
+                targets.put(profile.getName(), profile.getNum());
+            }
         }
-        return nodeReports;
+        if (!targets.isEmpty()) {
+            amrmCallbackHandler.resize(targets);
+        }
+        EventLog.info("am.reconfigured").with("changed", changed).with("targets", targets).log();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("applied", changed);
+        result.put("targets", amrmCallbackHandler.getTargets());
+        return result;
     }
 
     private static YarnClient initYarnClient() {
-        System.out.println("start init yarn client");
         YarnClient yarnClient = YarnClient.createYarnClient();
         yarnClient.init(yarnConfig);
         yarnClient.start();
-        System.out.println("end init yarn client");
+        EventLog.debug("am.yarn.client.started").log();
         return yarnClient;
     }
 
-    private static void registerAM() {
+    private static RegisterApplicationMasterResponse registerAM() {
         try {
-            System.out.println("start register application master");
             String hostname = InetAddress.getLocalHost().getHostName();
-            amrmClientAsync.registerApplicationMaster(hostname, 0, "");
-            System.out.println("end register application master");
+            RegisterApplicationMasterResponse response = amrmClientAsync.registerApplicationMaster(hostname,
+                    httpServer.getPort(), "http://" + hostname + ":" + httpServer.getPort() + "/");
+            launchTemplate.setStandbyUrl("http://" + hostname + ":" + httpServer.getPort() + "/standby");
+            EventLog.info("am.registered").with("host", hostname)
+                    .with("previousContainers", response.getContainersFromPreviousAttempts().size()).log();
+            return response;
         } catch (YarnException | IOException e) {
             throw new RuntimeException("register application master", e);
         }
     }
 
-    private static Priority createPriority() {
-        return Priority.newInstance(Integer.parseInt(appConfig.getProperty("container.priority")));
-    }
-
-    private static Resource createResource() {
-        return Resource.newInstance(Integer.parseInt(appConfig.getProperty("container.memory")),
-                Integer.parseInt(appConfig.getProperty("container.vCores")));
-    }
-
     private static void initNMClientAsync(AMRMCallbackHandler amrmCallbackHandler) {
-        System.out.println("start init async nm client");
-        nmClientAsync = NMClientAsync.createNMClientAsync(new NMCallbackHandler());
+        nmCallbackHandler = new NMCallbackHandler();
+        nmCallbackHandler.setAmrmCallbackHandler(amrmCallbackHandler);
+        nmClientAsync = NMClientAsync.createNMClientAsync(nmCallbackHandler);
         nmClientAsync.init(yarnConfig);
         nmClientAsync.start();
         amrmCallbackHandler.setNmClientAsync(nmClientAsync);
-        System.out.println("end init async nm client");
+        EventLog.debug("am.nm.client.started").log();
+    }
+
+    private static void initContainerLauncher(AMRMCallbackHandler amrmCallbackHandler) {
+        launchTemplate = new DrillbitLaunchTemplate(yarnConfig, appConfig);
+        containerLauncher = new ContainerLauncher(nmClientAsync, amrmCallbackHandler, launchTemplate,
+                DrillOnYarnConfig.getInt(appConfig, "launcher.threads"),
+                DrillOnYarnConfig.getInt(appConfig, "launcher.node.concurrency"), metrics);
+        amrmCallbackHandler.setContainerLauncher(containerLauncher);
+        nmCallbackHandler.setContainerLauncher(containerLauncher);
+        EventLog.debug("am.launcher.started").log();
     }
 
     private static AMRMCallbackHandler initAMRMClientAsync() {
-        System.out.println("start init async amrm client");
         AMRMCallbackHandler amrmCallbackHandler = new AMRMCallbackHandler();
-        amrmClientAsync = AMRMClientAsync.createAMRMClientAsync(5000, amrmCallbackHandler);
+        amrmCallbackHandler.setMetrics(metrics);
+        int heartbeatInterval = DrillOnYarnConfig.getInt(appConfig, "am.heartbeat.fast");
+        amrmClientAsync = AMRMClientAsync.createAMRMClientAsync(heartbeatInterval, amrmCallbackHandler);
         amrmClientAsync.init(yarnConfig);
         amrmClientAsync.start();
+        heartbeatController = new HeartbeatController(amrmClientAsync, appConfig, heartbeatInterval, metrics);
+        amrmCallbackHandler.setHeartbeatController(heartbeatController);
         amrmCallbackHandler.setYarnConfig(yarnConfig);
         amrmCallbackHandler.setAppConfig(appConfig);
         amrmCallbackHandler.setAmrmClientAsync(amrmClientAsync);
-        System.out.println("end init async amrm client");
+        EventLog.debug("am.amrm.client.started").log();
         return amrmCallbackHandler;
     }
 
-    private static void initAppConfig(Map<String, String> sysEnvironment) throws IOException {
-        appConfig = new Properties();
-        String configBase64Binary = sysEnvironment.get("DRILL_ON_YARN_CONFIG");
-        appConfig.load(new InputStreamReader(new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(configBase64Binary)),
-                StandardCharsets.UTF_8.name()));
-        System.out.println("app config is " + appConfig);
+    private static void initAppConfig() {
+        // 客户端提交前已经校验过，这里再校验一次防止配置文件被改坏
+        appConfig = YarnUtil.readConfig(new File(DrillOnYarnConfig.FILE_NAME));
+        DrillOnYarnConfig.validate(appConfig);
+        EventLog.configure(appConfig);
+        EventLog.info("am.config").with("config", new TreeMap<>(appConfig)).log();
     }
 }
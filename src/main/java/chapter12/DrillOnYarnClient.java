@@ -2,6 +2,7 @@ package chapter12;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileStatus;
@@ -10,23 +11,29 @@ import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.hadoop.yarn.api.records.*;
 import org.apache.hadoop.yarn.client.api.YarnClient;
 import org.apache.hadoop.yarn.client.api.YarnClientApplication;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.exceptions.YarnException;
-import org.apache.hadoop.yarn.util.Apps;
+import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * Drill on YARN客户端
@@ -37,6 +44,11 @@ import java.util.Properties;
 public class DrillOnYarnClient extends Configured implements Tool {
     private YarnClient yarnClient;
     private Configuration yarnConfig;
+    private ApplicationId applicationId;
+    /**
+     * start命令各阶段结束的时间戳：upload、submit、amStart
+     */
+    private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
 
     public static void main(String[] args) {
         int status = -1;
@@ -64,16 +76,31 @@ public class DrillOnYarnClient extends Configured implements Tool {
 
         switch (command) {
             case "start": {
-                start(config);
+                start(config, ArrayUtils.contains(args, "--wait"));
                 break;
             }
             case "stop": {
+                stop(config, ArrayUtils.contains(args, "--force"));
                 break;
             }
             case "resize": {
+                resize(config, args);
+                break;
+            }
+            case "reconfigure": {
+                reconfigure(config, args);
+                break;
+            }
+            case "upgrade": {
+                upgrade(config, args);
                 break;
             }
             case "status": {
+                status(config, ArrayUtils.contains(args, "--wait"));
+                break;
+            }
+            case "endpoints": {
+                endpoints(config);
                 break;
             }
             case "help": {
@@ -86,9 +113,17 @@ public class DrillOnYarnClient extends Configured implements Tool {
         return 0;
     }
 
-    private void start(Properties config) {
+    private void start(Properties config, boolean wait) {
+        try {
+            DrillOnYarnConfig.validate(config);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
         try {
+            long startTime = System.currentTimeMillis();
             FileStatus fileStatus = upload(config);
+            phaseTimes.put("upload", System.currentTimeMillis());
 
             yarnConfig = new YarnConfiguration(getConf());
 
@@ -98,16 +133,27 @@ public class DrillOnYarnClient extends Configured implements Tool {
 
             ApplicationSubmissionContext applicationContext = createApplicationContext(config, application);
 
-            ContainerLaunchContext amContainer = createAMContainer(fileStatus, config);
+            ContainerLaunchContext amContainer = createAMContainer(fileStatus, config, applicationContext.getApplicationId());
 
             applicationContext.setAMContainerSpec(amContainer);
 
             submitApplication(yarnClient, applicationContext);
+            phaseTimes.put("submit", System.currentTimeMillis());
 
-            ApplicationId applicationId = applicationContext.getApplicationId();
+            applicationId = applicationContext.getApplicationId();
             System.out.println("application id is  " + applicationId);
 
-            reportApplication(yarnClient, applicationId);
+            ApplicationReport report = reportApplication(yarnClient, applicationId);
+            if (report.getYarnApplicationState() == YarnApplicationState.RUNNING) {
+                phaseTimes.put("amStart", System.currentTimeMillis());
+                System.out.println("application master started in " + (phaseTimes.get("amStart") - startTime) +
+                        "ms, upload " + (phaseTimes.get("upload") - startTime) +
+                        "ms, submit " + (phaseTimes.get("submit") - phaseTimes.get("upload")) +
+                        "ms, am start " + (phaseTimes.get("amStart") - phaseTimes.get("submit")) + "ms");
+            }
+            if (wait && report.getYarnApplicationState() == YarnApplicationState.RUNNING) {
+                waitForDrillbits(new AMClient(report), DrillOnYarnConfig.getLong(config, "start.timeout"));
+            }
         } catch (Exception e) {
             e.printStackTrace();
             try {
@@ -121,28 +167,149 @@ public class DrillOnYarnClient extends Configured implements Tool {
 
     }
 
+    public ApplicationId getApplicationId() {
+        return applicationId;
+    }
+
+    public Map<String, Long> getPhaseTimes() {
+        return phaseTimes;
+    }
+
+    private void resize(Properties config, String[] args) {
+        // resize N 或 resize containers.num=N，加 resize.profile=NAME 时只调整这个profile；
+        // 必须显式给出个数，不能回落到config.properties中的containers.num，否则会把运行中的集群缩到默认个数
+        String count = null;
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].contains("=")) {
+                count = args[i];
+            } else if (args[i].startsWith("containers.num=")) {
+                count = args[i].substring("containers.num=".length());
+            }
+        }
+        int target;
+        try {
+            target = Integer.parseInt(StringUtils.trimToEmpty(count));
+        } catch (NumberFormatException e) {
+            System.err.println(count == null ? "resize needs the number of drillbits"
+                    : "resize needs the number of drillbits, but got " + count);
+            System.err.println("usage: resize <containers> [resize.profile=NAME] [app.id=ID]");
+            displayHelpInfo();
+            return;
+        }
+        String profile = config.getProperty("resize.profile", "");
+        yarnConfig = new YarnConfiguration(getConf());
+        yarnClient = initYarnClient();
+        try {
+            ApplicationReport report = findApplication(yarnClient, config);
+            AMClient amClient = securedClient(report, config);
+            System.out.println("resize application " + report.getApplicationId() + " to " + target + " drillbits"
+                    + (profile.isEmpty() ? "" : " of profile " + profile));
+            Map<String, Object> progress = amClient.post("/resize?containers=" + target
+                    + (profile.isEmpty() ? "" : "&profile=" + encode(profile)));
+            long deadline = System.currentTimeMillis() + DrillOnYarnConfig.getLong(config, "resize.timeout") * 1000;
+            String last = "";
+            while (true) {
+                String current = "target " + progress.get("target") + ", ready " + progress.get("running") +
+                        ", starting " + progress.get("started") + ", pending " + progress.get("pending") + ", releasing " + progress.get("releasing");
+                if (!current.equals(last)) {
+                    System.out.println(current);
+                    last = current;
+                }
+                // 为standby申请的Container可能一直等不到分配，只等待drillbit的请求
+                if (progress.get("running").equals(progress.get("target")) && progress.get("pendingDrillbits").equals(0)
+                        && progress.get("releasing").equals(0)) {
+                    System.out.println("resize to " + progress.get("target") + " drillbits finished");
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    System.err.println("resize not finished in time, " + current);
+                    break;
+                }
+                Thread.sleep(1000);
+                progress = amClient.get("/resize");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeYarnClient(yarnClient);
+        }
+    }
+
+    private ApplicationReport findApplication(YarnClient client, Properties config) {
+        try {
+            String appId = config.getProperty("app.id");
+            if (StringUtils.isNotBlank(appId)) {
+                return client.getApplicationReport(ConverterUtils.toApplicationId(appId));
+            }
+            ApplicationReport found = null;
+            for (ApplicationReport report : client.getApplications(EnumSet.of(YarnApplicationState.RUNNING))) {
+                if (report.getName().equals(config.getProperty("app.name"))
+                        && (found == null || report.getStartTime() > found.getStartTime())) {
+                    found = report;
+                }
+            }
+            if (found == null) {
+                throw new RuntimeException("no running application named " + config.getProperty("app.name"));
+            }
+            return found;
+        } catch (YarnException | IOException e) {
+            throw new RuntimeException("find application error", e);
+        }
+    }
+
     private FileStatus upload(Properties config) {
         System.out.println("start upload Drill to HDFS");
         String drillPath = config.getProperty("drill.path");
         System.out.println("drill path is " + drillPath);
-        File drill = new File(drillPath);
-        Path path = new Path(config.getProperty("fs.upload.dir") + drill.getName());
         FileStatus drillFileStatus;
         try {
             FileSystem fileSystem = FileSystem.get(getConf());
-            if (fileSystem.exists(path)) {
-                fileSystem.delete(path, true);
-            }
-            FileUtil.copy(drill, fileSystem, path, false, getConf());
-            drillFileStatus = fileSystem.getFileStatus(path);
+            drillFileStatus = uploadFile(fileSystem, new File(drillPath), config);
             System.out.println("Uploaded " + drillPath + " to HDFS at " + drillFileStatus.getPath() + " success");
+            uploadLayers(fileSystem, config);
         } catch (IOException e) {
             throw new RuntimeException("upload drill to HDFS error", e);
         }
+        // AM和drillbit按实际上传的路径本地化Drill
+        config.setProperty("drill.upload.path", drillFileStatus.getPath().toString());
         System.out.println("end upload Drill to HDFS");
         return drillFileStatus;
     }
 
+    private void uploadLayers(FileSystem fileSystem, Properties config) throws IOException {
+        String sitePath = config.getProperty("drill.site.path");
+        if (StringUtils.isNotBlank(sitePath)) {
+            File site = new File(sitePath);
+            if (!site.isFile() || !DrillLayers.isArchive(site.getName())) {
+                throw new IllegalArgumentException("drill.site.path must be an archive file, but is " + sitePath);
+            }
+            FileStatus siteStatus = uploadFile(fileSystem, site, config);
+            config.setProperty("drill.site.upload.path", siteStatus.getPath().toString());
+            System.out.println("Uploaded site " + sitePath + " to HDFS at " + siteStatus.getPath());
+        }
+        List<String> overlayUploadPaths = new ArrayList<>();
+        for (String overlayPath : DrillLayers.overlayPaths(config)) {
+            FileStatus overlayStatus = uploadFile(fileSystem, new File(overlayPath), config);
+            overlayUploadPaths.add(overlayStatus.getPath().toString());
+            System.out.println("Uploaded overlay " + overlayPath + " to HDFS at " + overlayStatus.getPath());
+        }
+        config.setProperty("drill.overlay.upload.paths", StringUtils.join(overlayUploadPaths, ','));
+    }
+
+    private FileStatus uploadFile(FileSystem fileSystem, File local, Properties config) throws IOException {
+        if (DrillOnYarnConfig.getBoolean(config, "fs.upload.cache")) {
+            UploadCache uploadCache = new UploadCache(fileSystem, getConf(), config.getProperty("fs.upload.dir"),
+                    DrillOnYarnConfig.getInt(config, "fs.upload.retain"));
+            return uploadCache.upload(local);
+        }
+        Path path = new Path(config.getProperty("fs.upload.dir") + local.getName());
+        if (fileSystem.exists(path)) {
+            fileSystem.delete(path, true);
+        }
+        FileUtil.copy(local, fileSystem, path, false, getConf());
+        return fileSystem.getFileStatus(path);
+    }
+
     private YarnClient initYarnClient() {
         System.out.println("start create yarn yarnClient");
         YarnClient client = YarnUtil.initYarnClient(yarnConfig);
@@ -160,31 +327,85 @@ public class DrillOnYarnClient extends Configured implements Tool {
     private ApplicationSubmissionContext createApplicationContext(Properties config, YarnClientApplication application) {
         System.out.println("start create application context");
         ApplicationSubmissionContext applicationContext = YarnUtil.createYarnApplicationContext(application, config.getProperty("app.name"),
-                config.getProperty("app.queue"), Integer.parseInt(config.getProperty("app.priority")),
-                Integer.parseInt(config.getProperty("am.memory")), Integer.parseInt(config.getProperty("am.vCores")));
+                config.getProperty("app.queue"), DrillOnYarnConfig.getInt(config, "app.priority"),
+                DrillOnYarnConfig.getInt(config, "am.memory"), DrillOnYarnConfig.getInt(config, "am.vCores"));
+        // AM重启时保留正在运行的drillbit，由新的AM接管
+        applicationContext.setKeepContainersAcrossApplicationAttempts(true);
+        applicationContext.setMaxAppAttempts(DrillOnYarnConfig.getInt(config, "am.max.attempts"));
+        applicationContext.setAttemptFailuresValidityInterval(
+                DrillOnYarnConfig.getLong(config, "am.attempt.failures.validity") * 1000);
         System.out.println("end create application context");
         return applicationContext;
     }
 
-    private ContainerLaunchContext createAMContainer(FileStatus fileStatus, Properties config) {
+    private ContainerLaunchContext createAMContainer(FileStatus fileStatus, Properties config, ApplicationId applicationId) {
         System.out.println("start create am container");
         ContainerLaunchContext amContainer = Records.newRecord(ContainerLaunchContext.class);
 
-        setAMContainerResources(amContainer, fileStatus);
+        setAMContainerResources(amContainer, config, applicationId);
 
         setAMContainerEnvironment(amContainer, yarnConfig, config);
 
         setAMContainerCommand(amContainer, fileStatus, config);
+
+        setAMContainerSecret(amContainer, config, applicationId);
         System.out.println("end create am container");
         return amContainer;
     }
 
-    private void setAMContainerResources(ContainerLaunchContext amContainer, FileStatus fileStatus) {
+    private void setAMContainerResources(ContainerLaunchContext amContainer, Properties config, ApplicationId applicationId) {
         System.out.println("start set am container resources");
-        amContainer.setLocalResources(YarnUtil.buildResource(fileStatus, LocalResourceType.ARCHIVE, LocalResourceVisibility.PUBLIC));
+        try {
+            FileSystem fileSystem = FileSystem.get(getConf());
+            Map<String, LocalResource> localResources = DrillLayers.buildLocalResources(fileSystem, config);
+            if (DrillOnYarnConfig.getBoolean(config, "drill.local.dirs.enabled")) {
+                // drillbit的启动脚本按应用保存，AM作为本地资源下发给每个drillbit Container
+                FileStatus scriptStatus = YarnUtil.writeResource(fileSystem,
+                        new Path(config.getProperty("fs.upload.dir") + applicationId + "/" + DrillLayers.LAUNCH_SCRIPT_NAME),
+                        DrillLayers.LAUNCH_SCRIPT_NAME);
+                config.setProperty("drill.launch.upload.path", scriptStatus.getPath().toString());
+            }
+            // 配置文件按应用保存，AM从工作目录读取
+            FileStatus configStatus = YarnUtil.writeConfig(fileSystem,
+                    new Path(config.getProperty("fs.upload.dir") + applicationId + "/" + DrillOnYarnConfig.FILE_NAME), config);
+            localResources.put(DrillOnYarnConfig.FILE_NAME,
+                    YarnUtil.buildLocalResource(configStatus, LocalResourceType.FILE, LocalResourceVisibility.APPLICATION));
+            amContainer.setLocalResources(localResources);
+        } catch (IOException e) {
+            throw new RuntimeException("Set am container resources error", e);
+        }
         System.out.println("emd set am container resources");
     }
 
+    /**
+     * 生成AM HTTP服务的密钥，通过凭据交给AM，同时写到应用目录供之后的命令读取
+     */
+    private void setAMContainerSecret(ContainerLaunchContext amContainer, Properties config, ApplicationId applicationId) {
+        String secret = YarnUtil.newSecret();
+        try {
+            YarnUtil.writeSecret(FileSystem.get(getConf()), secretPath(config, applicationId), secret);
+        } catch (IOException e) {
+            throw new RuntimeException("write am secret error", e);
+        }
+        amContainer.setTokens(YarnUtil.secretTokens(secret));
+    }
+
+    private static Path secretPath(Properties config, ApplicationId applicationId) {
+        return new Path(config.getProperty("fs.upload.dir") + applicationId + "/" + YarnUtil.AM_SECRET_FILE_NAME);
+    }
+
+    /**
+     * 带密钥的AMClient，用于修改集群的POST请求
+     */
+    private AMClient securedClient(ApplicationReport report, Properties config) {
+        try {
+            return new AMClient(report,
+                    YarnUtil.readSecret(FileSystem.get(getConf()), secretPath(config, report.getApplicationId())));
+        } catch (IOException e) {
+            throw new RuntimeException("read am secret error", e);
+        }
+    }
+
     private void setAMContainerCommand(ContainerLaunchContext amContainer, FileStatus drillFileStatus, Properties config) {
         System.out.println("start set am container command");
         amContainer.setCommands(YarnUtil.buildCommand(drillFileStatus.getPath().getName() + "/" +
@@ -195,54 +416,301 @@ public class DrillOnYarnClient extends Configured implements Tool {
     private void setAMContainerEnvironment(ContainerLaunchContext amContainer, Configuration yarnConfig, Properties config) {
         System.out.println("start set am container environment");
         Map<String, String> amEnvironment = YarnUtil.buildCommonEnvironment(yarnConfig);
-        // DRILL_ON_YARN_CONFIG -> config
+        DrillLayers.addLayerEnvironment(amEnvironment, config);
+        amContainer.setEnvironment(amEnvironment);
+        System.out.println("end set am container environment");
+    }
+
+    /**
+     * 每次重新获取ApplicationReport，直到AM注册成功(RUNNING)或应用结束，最多等待60秒
+     */
+    private ApplicationReport reportApplication(YarnClient client, ApplicationId applicationId) {
+        long deadline = System.currentTimeMillis() + 60000;
+        YarnApplicationState lastState = null;
+        while (true) {
+            ApplicationReport report;
+            try {
+                report = client.getApplicationReport(applicationId);
+            } catch (YarnException | IOException e) {
+                throw new RuntimeException(e);
+            }
+            YarnApplicationState applicationState = report.getYarnApplicationState();
+            if (applicationState != lastState) {
+                System.out.println("application " + applicationId + " " + applicationState.name().toLowerCase());
+                lastState = applicationState;
+            }
+            if (YarnApplicationState.KILLED.equals(applicationState) || YarnApplicationState.FAILED.equals(applicationState)
+                    || YarnApplicationState.FINISHED.equals(applicationState)) {
+                System.out.println("application " + applicationId + " " + applicationState.name().toLowerCase()
+                        + ", diagnostics " + report.getDiagnostics());
+                return report;
+            }
+            if (YarnApplicationState.RUNNING.equals(applicationState) || System.currentTimeMillis() > deadline) {
+                System.out.println("application " + applicationId + " " + applicationState.name().toLowerCase()
+                        + ", tracking url " + report.getTrackingUrl());
+                return report;
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return report;
+            }
+        }
+    }
+
+    /**
+     * reconfigure key=value ...：把可以重新加载的配置发给运行中的AM，app.id和app.name只用来查找应用
+     */
+    private void reconfigure(Properties config, String[] args) {
+        StringBuilder query = new StringBuilder();
+        for (int i = 1; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv.length < 2 || kv[0].equals("app.id") || kv[0].equals("app.name")) {
+                continue;
+            }
+            query.append(query.length() == 0 ? "?" : "&").append(encode(kv[0])).append('=').append(encode(kv[1]));
+        }
+        if (query.length() == 0) {
+            System.err.println("nothing to reconfigure, reloadable keys are " + DrillOnYarnConfig.getReloadableKeys());
+            return;
+        }
+        yarnConfig = new YarnConfiguration(getConf());
+        yarnClient = initYarnClient();
         try {
-            StringWriter sw = new StringWriter();
-            config.store(sw, "");
-            String configBase64Binary = DatatypeConverter.printBase64Binary(sw.toString().getBytes(StandardCharsets.UTF_8.name()));
-            Apps.addToEnvironment(amEnvironment, "DRILL_ON_YARN_CONFIG", configBase64Binary,
-                    ApplicationConstants.CLASS_PATH_SEPARATOR);
+            ApplicationReport report = findApplication(yarnClient, config);
+            Map<String, Object> result = securedClient(report, config).post("/config" + query);
+            System.out.println("reconfigured application " + report.getApplicationId() + ": " + result.get("applied"));
+        } finally {
+            closeYarnClient(yarnClient);
+        }
+    }
+
+    /**
+     * upgrade drill.path=新版本安装包 drill.archive.name=解压后的目录名：上传新版本后由AM滚动升级，等待升级完成或回滚
+     */
+    private void upgrade(Properties config, String[] args) {
+        boolean drillPath = false;
+        for (String arg : args) {
+            drillPath |= arg.startsWith("drill.path=");
+        }
+        if (!drillPath) {
+            System.err.println("upgrade needs drill.path=<new drill archive> and drill.archive.name=<its directory name>");
+            return;
+        }
+        FileStatus drillFileStatus;
+        try {
+            drillFileStatus = uploadFile(FileSystem.get(getConf()), new File(config.getProperty("drill.path")), config);
         } catch (IOException e) {
-            throw new RuntimeException("Set am container environment error", e);
+            throw new RuntimeException("upload drill to HDFS error", e);
+        }
+        System.out.println("Uploaded " + config.getProperty("drill.path") + " to HDFS at " + drillFileStatus.getPath());
+        String query = "?drill.path=" + encode(config.getProperty("drill.path"))
+                + "&drill.archive.name=" + encode(config.getProperty("drill.archive.name"))
+                + "&drill.upload.path=" + encode(drillFileStatus.getPath().toString())
+                + "&batch=" + DrillOnYarnConfig.getInt(config, "upgrade.batch.size")
+                + "&surge=" + DrillOnYarnConfig.getInt(config, "upgrade.surge")
+                + "&min.available="
+                + StringUtils.defaultString(DrillOnYarnConfig.getString(config, "upgrade.min.available"));
+        yarnConfig = new YarnConfiguration(getConf());
+        yarnClient = initYarnClient();
+        try {
+            ApplicationReport report = findApplication(yarnClient, config);
+            AMClient amClient = securedClient(report, config);
+            Map<String, Object> progress = amClient.post("/upgrade" + query);
+            System.out.println("upgrade application " + report.getApplicationId() + " from " + progress.get("from")
+                    + " to " + progress.get("to"));
+            long deadline = System.currentTimeMillis() + DrillOnYarnConfig.getLong(config, "upgrade.timeout") * 1000;
+            String last = "";
+            while (true) {
+                String phase = (String) progress.get("phase");
+                String current = phase + ", batch " + progress.get("batches") + ", versions " + progress.get("versions")
+                        + ", failures " + progress.get("failures");
+                if (!current.equals(last)) {
+                    System.out.println(current);
+                    last = current;
+                }
+                if (phase.equals("finished")) {
+                    System.out.println("upgrade to " + progress.get("to") + " finished");
+                    break;
+                }
+                if (phase.equals("rolled_back") || phase.equals("failed")) {
+                    System.err.println("upgrade " + phase.replace('_', ' ') + ": " + progress.get("reason"));
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    System.err.println("upgrade not finished in time, " + current);
+                    break;
+                }
+                Thread.sleep(2000);
+                progress = amClient.get("/upgrade");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeYarnClient(yarnClient);
         }
-        amContainer.setEnvironment(amEnvironment);
-        System.out.println("end set am container environment");
     }
 
-    private void reportApplication(YarnClient client, ApplicationId applicationId) {
-        ApplicationReport report;
+    /**
+     * 请求AM有序停止：等待drillbit上的查询结束后停止所有drillbit并注销，边等待边打印每个drillbit的排空结果；
+     * 加 --force 时直接kill应用
+     */
+    @SuppressWarnings("unchecked")
+    private void stop(Properties config, boolean force) {
+        yarnConfig = new YarnConfiguration(getConf());
+        yarnClient = initYarnClient();
         try {
-            report = client.getApplicationReport(applicationId);
+            ApplicationReport report = findApplication(yarnClient, config);
+            ApplicationId applicationId = report.getApplicationId();
+            if (report.getYarnApplicationState() != YarnApplicationState.RUNNING) {
+                System.out.println("application " + applicationId + " is " + report.getYarnApplicationState().name().toLowerCase());
+                return;
+            }
+            if (force) {
+                yarnClient.killApplication(applicationId);
+                System.out.println("killed application " + applicationId);
+                return;
+            }
+            long drainTimeout = DrillOnYarnConfig.getLong(config, "stop.drain.timeout");
+            AMClient amClient = securedClient(report, config);
+            Map<String, Object> progress = amClient.post("/shutdown?timeout=" + drainTimeout);
+            System.out.println("stopping application " + applicationId + ", waiting up to " + drainTimeout
+                    + "s for running queries");
+            long deadline = System.currentTimeMillis()
+                    + (drainTimeout + DrillOnYarnConfig.getLong(config, "stop.container.timeout") + 60) * 1000;
+            Set<Object> printed = new HashSet<>();
+            long maxDrainMillis = 0;
+            while (System.currentTimeMillis() < deadline) {
+                for (Map<String, Object> drillbit : (List<Map<String, Object>>) progress.get("drillbits")) {
+                    if (printed.add(drillbit.get("containerId"))) {
+                        System.out.println("  " + drillbit.get("containerId") + "  " + drillbit.get("host") + "  "
+                                + drillbit.get("outcome") + " in " + drillbit.get("drainMillis") + "ms, queries "
+                                + drillbit.get("queriesAtStart") + " -> " + drillbit.get("queriesLeft"));
+                        maxDrainMillis = Math.max(maxDrainMillis, ((Number) drillbit.get("drainMillis")).longValue());
+                    }
+                }
+                if (progress.get("phase").equals("finished")) {
+                    break;
+                }
+                Thread.sleep(1000);
+                try {
+                    progress = amClient.get("/shutdown");
+                } catch (RuntimeException e) {
+                    // AM注销后已经退出
+                    break;
+                }
+            }
+            System.out.println("stopped " + printed.size() + " drillbits, longest drain " + maxDrainMillis + "ms");
+            for (int i = 0; i < 30; i++) {
+                report = yarnClient.getApplicationReport(applicationId);
+                if (report.getYarnApplicationState() != YarnApplicationState.RUNNING) {
+                    break;
+                }
+                Thread.sleep(1000);
+            }
+            System.out.println("application " + applicationId + " " + report.getYarnApplicationState().name().toLowerCase()
+                    + ", final status " + report.getFinalApplicationStatus().name().toLowerCase() + ", "
+                    + report.getDiagnostics());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (YarnException | IOException e) {
+            throw new RuntimeException("stop application error", e);
+        } finally {
+            closeYarnClient(yarnClient);
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
-        YarnApplicationState applicationState = report.getYarnApplicationState();
-        int i = 0;
-        while (true) {
-            if (i == 60) {
-                break;
-            }
-            if (YarnApplicationState.KILLED.equals(applicationState)) {
-                System.out.println("application " + applicationId + " killed");
-                break;
+    }
+
+    private void status(Properties config, boolean wait) {
+        yarnConfig = new YarnConfiguration(getConf());
+        yarnClient = initYarnClient();
+        try {
+            ApplicationReport report = findApplication(yarnClient, config);
+            System.out.println("application " + report.getApplicationId() + " " + report.getYarnApplicationState().name().toLowerCase()
+                    + ", tracking url " + report.getTrackingUrl());
+            if (report.getYarnApplicationState() != YarnApplicationState.RUNNING) {
+                return;
             }
-            if (YarnApplicationState.FAILED.equals(applicationState)) {
-                System.out.println("application " + applicationId + " failed");
-                break;
+            AMClient amClient = new AMClient(report);
+            if (wait) {
+                waitForDrillbits(amClient, DrillOnYarnConfig.getLong(config, "start.timeout"));
+                return;
             }
-            if (YarnApplicationState.FINISHED.equals(applicationState)) {
-                System.out.println("application " + applicationId + " finished");
-                break;
+            printStatus(amClient.get("/status"));
+        } finally {
+            closeYarnClient(yarnClient);
+        }
+    }
+
+    /**
+     * 打印AM注册表中每个drillbit的地址、状态和最近的负载，以及DrillbitSelector此刻会选择的JDBC地址
+     */
+    private void endpoints(Properties config) {
+        yarnConfig = new YarnConfiguration(getConf());
+        yarnClient = initYarnClient();
+        try {
+            ApplicationReport report = findApplication(yarnClient, config);
+            DrillbitSelector selector = new DrillbitSelector(new AMClient(report), 0);
+            for (Map<String, Object> endpoint : selector.getEndpoints()) {
+                System.out.println("  " + endpoint.get("host") + ":" + endpoint.get("userPort") + "  " + endpoint.get("profile")
+                        + "  " + endpoint.get("state") + (Boolean.TRUE.equals(endpoint.get("accepting")) ? "" : " (not accepting)")
+                        + "  load " + String.format("%.1f", DrillbitSelector.getLoad(endpoint)));
             }
-            System.out.println("application " + applicationId + " " + applicationState.name().toLowerCase());
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            System.out.println("least loaded: " + selector.selectJdbcUrl());
+        } finally {
+            closeYarnClient(yarnClient);
+        }
+    }
+
+    /**
+     * 长轮询AM的/status，每次状态变化都打印，直到运行中的drillbit达到目标个数
+     */
+    private void waitForDrillbits(AMClient amClient, long timeoutSeconds) {
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000;
+        long version = -1;
+        while (System.currentTimeMillis() < deadline) {
+            Map<String, Object> status = amClient.request("GET", "/status?version=" + version + "&wait=30000", 40000);
+            version = ((Number) status.get("version")).longValue();
+            printStatus(status);
+            int target = (Integer) status.get("target");
+            if (target > 0 && status.get("running").equals(target)) {
+                System.out.println("all " + target + " drillbits are ready");
+                return;
             }
-            i++;
         }
-        System.out.println("application " + applicationId + " " + applicationState.name().toLowerCase() + ", tracking url " + report.getTrackingUrl());
+        System.err.println("drillbits not ready in " + timeoutSeconds + "s");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void printStatus(Map<String, Object> status) {
+        System.out.println("target " + status.get("target") + ", ready " + status.get("running") + ", starting "
+                + status.get("started") + ", pending "
+                + status.get("pending") + ", standby " + status.get("standby") + ", draining " + status.get("draining")
+                + ", releasing " + status.get("releasing"));
+        for (Map<String, Object> drillbit : (List<Map<String, Object>>) status.get("drillbits")) {
+            System.out.println("  " + drillbit.get("containerId") + "  " + drillbit.get("host") + "  " + drillbit.get("profile")
+                    + "  " + drillbit.get("state")
+                    + "  started " + formatTime(drillbit.get("startTime")) + "  ready " + formatTime(drillbit.get("readyTime")));
+        }
+        List<Map<String, Object>> completed = (List<Map<String, Object>>) status.get("completed");
+        if (!completed.isEmpty()) {
+            Map<String, Object> last = completed.get(0);
+            System.out.println("  last exit: " + last.get("containerId") + "  " + last.get("host") + "  exit status "
+                    + last.get("exitStatus") + "  at " + formatTime(last.get("finishTime")));
+        }
+    }
+
+    private static String formatTime(Object millis) {
+        long time = ((Number) millis).longValue();
+        return time > 0 ? new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time)) : "-";
     }
 
     private void closeYarnClient(YarnClient client) {
@@ -267,7 +735,10 @@ public class DrillOnYarnClient extends Configured implements Tool {
             config.load(DrillOnYarnClient.class.getResourceAsStream("config.properties"));
             for (int i = 1; i < args.length; i++) {
                 String configArg = args[i];
-                String[] configArgs = configArg.split("=");
+                if (!configArg.contains("=")) {
+                    continue;
+                }
+                String[] configArgs = configArg.split("=", 2);
                 String key = configArgs[0];
                 String value = configArgs[1];
                 config.setProperty(key, value);
@@ -0,0 +1,320 @@
+package chapter12;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Drill on YARN配置项的类型、下限、默认值以及能否在运行中重新加载。客户端提交前校验一次，配置有误时一次报告所有错误，
+ * AM只会拿到校验过的配置；运行中的AM只接受reloadable的配置项。各组件通过getInt等方法按类型读取配置，
+ * 没有配置时使用这里登记的默认值，默认值与config.properties中的值保持一致
+ *
+ * @author 徐洁阳
+ */
+public final class DrillOnYarnConfig {
+    /**
+     * 配置文件作为AM Container的本地资源时的文件名
+     */
+    public static final String FILE_NAME = "drill-on-yarn.properties";
+
+    private static final Pattern PROFILE_NUM = Pattern.compile("profile\\.[^.]+\\.num");
+
+    private enum Type {
+        STRING, INT, LONG, DOUBLE, BOOLEAN
+    }
+
+    private static final class Option {
+        private final Type type;
+        private final boolean required;
+        private final double min;
+        private final boolean reloadable;
+        private final String defaultValue;
+
+        private Option(Type type, boolean required, double min, boolean reloadable, String defaultValue) {
+            this.type = type;
+            this.required = required;
+            this.min = min;
+            this.reloadable = reloadable;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    private static final Map<String, Option> OPTIONS = new LinkedHashMap<>();
+
+    static {
+        option("drill.path", Type.STRING, true, 0, false, null);
+        option("drill.archive.name", Type.STRING, true, 0, false, null);
+        option("fs.upload.dir", Type.STRING, true, 0, false, null);
+        option("app.name", Type.STRING, true, 0, false, null);
+        option("app.queue", Type.STRING, true, 0, false, null);
+        option("am.memory", Type.INT, true, 1, false, null);
+        option("am.vCores", Type.INT, true, 1, false, null);
+        option("app.priority", Type.INT, true, Integer.MIN_VALUE, false, null);
+        option("containers.num", Type.INT, false, 0, true, null);
+        // 没有profile时必须配置，在validate中单独检查
+        option("container.memory", Type.INT, false, 1, false, null);
+        option("container.vCores", Type.INT, false, 1, false, null);
+        option("container.priority", Type.INT, false, Integer.MIN_VALUE, false, null);
+        option("drill.site.path", Type.STRING, false, 0, false, null);
+        option("drill.overlay.paths", Type.STRING, false, 0, false, "");
+        option("fs.upload.cache", Type.BOOLEAN, false, 0, false, "true");
+        option("fs.upload.retain", Type.INT, false, 2, false, "3");
+        option("launcher.threads", Type.INT, false, 1, false, "8");
+        option("launcher.node.concurrency", Type.INT, false, 1, false, "2");
+        option("am.http.port", Type.INT, false, 0, false, "0");
+        option("am.http.threads", Type.INT, false, 1, false, "8");
+        option("am.http.long.polls", Type.INT, false, 1, false, "8");
+        option("resize.timeout", Type.LONG, false, 0, false, "600");
+        option("drill.http.port", Type.INT, false, 1, false, "8047");
+        option("autoscale.enabled", Type.BOOLEAN, false, 0, false, "false");
+        option("autoscale.policy", Type.STRING, false, 0, false, QueryLoadPolicy.class.getName());
+        option("autoscale.min", Type.INT, false, 0, true, "1");
+        option("autoscale.max", Type.INT, false, 0, true, null);
+        option("autoscale.interval", Type.LONG, false, 1, false, "10");
+        option("autoscale.sample.timeout", Type.INT, false, 1, false, "2000");
+        option("autoscale.sample.threads", Type.INT, false, 1, false, "8");
+        option("autoscale.stable.samples", Type.INT, false, 1, true, "3");
+        option("autoscale.up.cooldown", Type.LONG, false, 0, true, "60");
+        option("autoscale.down.cooldown", Type.LONG, false, 0, true, "300");
+        option("autoscale.resize.timeout", Type.LONG, false, 0, true, "300");
+        option("autoscale.up.load", Type.DOUBLE, false, 0, true, "8");
+        option("autoscale.down.load", Type.DOUBLE, false, 0, true, "1");
+        option("autoscale.memory.high", Type.DOUBLE, false, 0, true, "0.85");
+        option("autoscale.step", Type.INT, false, 1, true, "1");
+        option("autoscale.metrics.url", Type.STRING, false, 0, false, "http://%s:%d/status/metrics");
+        option("recovery.backoff.base", Type.LONG, false, 0, false, "1000");
+        option("recovery.backoff.max", Type.LONG, false, 0, false, "60000");
+        option("recovery.node.max.failures", Type.INT, false, 1, false, "3");
+        option("recovery.max.failures", Type.INT, false, 0, false, "20");
+        option("recovery.failure.window", Type.LONG, false, 1, false, "3600");
+        option("placement.policy", Type.STRING, false, 0, false, ResourceAwarePlacement.class.getName());
+        option("placement.weight.memory", Type.DOUBLE, false, Double.NEGATIVE_INFINITY, true, "1");
+        option("placement.weight.vCores", Type.DOUBLE, false, Double.NEGATIVE_INFINITY, true, "1");
+        option("placement.weight.rack", Type.DOUBLE, false, Double.NEGATIVE_INFINITY, true, "0.5");
+        option("placement.weight.locality", Type.DOUBLE, false, Double.NEGATIVE_INFINITY, true, "1");
+        option("placement.unhealthy.penalty", Type.DOUBLE, false, Double.NEGATIVE_INFINITY, true, "1");
+        option("placement.hot.paths", Type.STRING, false, 0, true, "");
+        option("placement.locality.refresh", Type.LONG, false, 0, true, "600");
+        option("placement.nodes.refresh", Type.LONG, false, 1, false, "10");
+        option("node.drain.timeout", Type.LONG, false, 0, false, "300");
+        option("am.heartbeat.fast", Type.INT, false, 1, true, "500");
+        option("am.heartbeat.slow", Type.INT, false, 1, true, "10000");
+        option("start.timeout", Type.LONG, false, 0, false, "600");
+        option("log.level", Type.STRING, false, 0, true, "INFO");
+        option("log.buffer", Type.INT, false, 1, false, "8192");
+        option("am.max.attempts", Type.INT, false, 1, false, "3");
+        option("am.attempt.failures.validity", Type.LONG, false, 0, false, "600");
+        option("am.state.dir", Type.STRING, false, 0, false, null);
+        option("am.state.interval", Type.LONG, false, 1, false, "1000");
+        option("standby.num", Type.INT, false, 0, false, "0");
+        option("standby.poll", Type.INT, false, 1, false, "1");
+        option("profiles", Type.STRING, false, 0, false, "");
+        option("drill.user.port", Type.INT, false, 1, false, "31010");
+        option("drill.local.dirs.enabled", Type.BOOLEAN, false, 0, false, "true");
+        option("probe.enabled", Type.BOOLEAN, false, 0, false, "true");
+        option("probe.interval", Type.LONG, false, 1, false, "1000");
+        option("probe.timeout", Type.INT, false, 1, false, "1000");
+        option("probe.threads", Type.INT, false, 1, false, "8");
+        option("probe.ready.timeout", Type.LONG, false, 1, false, "300");
+        option("registry.interval", Type.LONG, false, 1, false, "5");
+        option("registry.samples", Type.INT, false, 1, false, "3");
+        option("registry.ttl", Type.LONG, false, 0, false, "5");
+        option("stop.drain.timeout", Type.LONG, false, 0, false, "300");
+        option("stop.container.timeout", Type.LONG, false, 0, false, "60");
+        option("stop.quiescent.url", Type.STRING, false, 0, false, "http://%s:%d/quiescent");
+        option("memory.partition.enabled", Type.BOOLEAN, false, 0, false, "true");
+        option("memory.policy", Type.STRING, false, 0, false, RatioMemoryPolicy.class.getName());
+        option("memory.overhead.ratio", Type.DOUBLE, false, 0, false, "0.1");
+        option("memory.overhead.min", Type.INT, false, 0, false, "512");
+        option("memory.code.cache", Type.INT, false, 0, false, "1024");
+        option("memory.heap.ratio", Type.DOUBLE, false, 0, false, "0.3");
+        option("memory.heap.min", Type.INT, false, 1, false, "1024");
+        option("memory.heap.max", Type.INT, false, 1, false, "16384");
+        option("memory.direct.min", Type.INT, false, 0, false, "1024");
+        option("memory.warn.ratio", Type.DOUBLE, false, 0, false, "0.9");
+        option("upgrade.batch.size", Type.INT, false, 1, false, "1");
+        option("upgrade.surge", Type.INT, false, 0, false, "1");
+        option("upgrade.min.available", Type.INT, false, 0, false, null);
+        option("upgrade.ready.wait", Type.LONG, false, 0, false, "10");
+        option("upgrade.batch.timeout", Type.LONG, false, 1, false, "600");
+        option("upgrade.max.failures", Type.INT, false, 1, false, "2");
+        option("upgrade.timeout", Type.LONG, false, 0, false, "3600");
+    }
+
+    private DrillOnYarnConfig() {
+    }
+
+    private static void option(String key, Type type, boolean required, double min, boolean reloadable,
+                               String defaultValue) {
+        OPTIONS.put(key, new Option(type, required, min, reloadable, defaultValue));
+    }
+
+    /**
+     * 配置项的值，没有配置时为登记的默认值，没有默认值时为null；key必须是登记过的配置项
+     */
+    public static String getString(Properties config, String key) {
+        Option option = OPTIONS.get(key);
+        if (option == null) {
+            throw new IllegalArgumentException("unknown config " + key);
+        }
+        String value = config.getProperty(key);
+        return StringUtils.isBlank(value) ? option.defaultValue : value.trim();
+    }
+
+    public static int getInt(Properties config, String key) {
+        return Integer.parseInt(getRequired(config, key));
+    }
+
+    public static long getLong(Properties config, String key) {
+        return Long.parseLong(getRequired(config, key));
+    }
+
+    public static double getDouble(Properties config, String key) {
+        return Double.parseDouble(getRequired(config, key));
+    }
+
+    public static boolean getBoolean(Properties config, String key) {
+        return Boolean.parseBoolean(getRequired(config, key));
+    }
+
+    /**
+     * 配置项是否显式配置了值，用于没有默认值、不配置时另有含义的配置项
+     */
+    public static boolean isSet(Properties config, String key) {
+        return StringUtils.isNotBlank(config.getProperty(key));
+    }
+
+    private static String getRequired(Properties config, String key) {
+        String value = getString(config, key);
+        if (value == null) {
+            throw new IllegalArgumentException(key + " is required");
+        }
+        return value;
+    }
+
+    /**
+     * 校验所有已知配置项的类型和下限、配置项之间的约束以及drillbit profile，有错误时抛出包含所有错误的IllegalArgumentException
+     */
+    public static void validate(Properties config) {
+        List<String> errors = new ArrayList<>();
+        boolean profiles = isSet(config, "profiles");
+        for (Map.Entry<String, Option> entry : OPTIONS.entrySet()) {
+            String error = check(entry.getKey(), entry.getValue(), config.getProperty(entry.getKey()));
+            if (error != null) {
+                errors.add(error);
+            }
+        }
+        if (!profiles) {
+            // 没有profile时drillbit使用container.*和containers.num，类型和下限已经在上面检查过
+            String[] keys = {"container.memory", "container.vCores", "container.priority", "containers.num"};
+            for (String key : keys) {
+                if (!isSet(config, key)) {
+                    errors.add(key + " is required");
+                }
+            }
+        }
+        if (errors.isEmpty()) {
+            try {
+                List<DrillbitProfile> parsed = DrillbitProfile.parse(config);
+                if (getBoolean(config, "memory.partition.enabled")) {
+                    checkMemoryPartition(config, parsed, errors);
+                }
+            } catch (IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+            try {
+                EventLog.Level.valueOf(getString(config, "log.level").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                errors.add("log.level must be one of DEBUG, INFO, WARN, ERROR");
+            }
+            if (isSet(config, "autoscale.max") && getInt(config, "autoscale.max") < getInt(config, "autoscale.min")) {
+                errors.add("autoscale.max must not be less than autoscale.min");
+            }
+            if (getInt(config, "am.heartbeat.fast") > getInt(config, "am.heartbeat.slow")) {
+                errors.add("am.heartbeat.fast must not be greater than am.heartbeat.slow");
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("invalid config: " + StringUtils.join(errors, "; "));
+        }
+    }
+
+    /**
+     * 每个profile的Container内存都要能按内存划分策略放下堆、直接内存、代码缓存和余量，profile配置的heap和direct.memory也要放得下
+     */
+    private static void checkMemoryPartition(Properties config, List<DrillbitProfile> profiles, List<String> errors) {
+        if (getInt(config, "memory.heap.min") > getInt(config, "memory.heap.max")) {
+            errors.add("memory.heap.min must not be greater than memory.heap.max");
+            return;
+        }
+        MemoryPolicy policy;
+        try {
+            policy = MemoryPartition.createPolicy(config);
+        } catch (RuntimeException e) {
+            errors.add(e.getMessage());
+            return;
+        }
+        for (DrillbitProfile profile : profiles) {
+            try {
+                policy.partition(profile.getCapability().getMemory()).override(profile);
+            } catch (IllegalArgumentException e) {
+                errors.add("profile " + profile.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String check(String key, Option option, String value) {
+        if (StringUtils.isBlank(value)) {
+            return option.required ? key + " is required" : null;
+        }
+        double number;
+        try {
+            switch (option.type) {
+                case INT:
+                    number = Integer.parseInt(value);
+                    break;
+                case LONG:
+                    number = Long.parseLong(value);
+                    break;
+                case DOUBLE:
+                    number = Double.parseDouble(value);
+                    break;
+                case BOOLEAN:
+                    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                        return key + " must be true or false, but is " + value;
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return key + " must be " + option.type.name().toLowerCase() + ", but is " + value;
+        }
+        return number < option.min ? key + " must not be less than " + (long) option.min + ", but is " + value : null;
+    }
+
+    /**
+     * 运行中的AM能否应用这个配置项：目标个数、心跳、自动扩缩容和放置策略的参数以及日志级别
+     */
+    public static boolean isReloadable(String key) {
+        Option option = OPTIONS.get(key);
+        return option != null ? option.reloadable : PROFILE_NUM.matcher(key).matches();
+    }
+
+    public static List<String> getReloadableKeys() {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Option> entry : OPTIONS.entrySet()) {
+            if (entry.getValue().reloadable) {
+                keys.add(entry.getKey());
+            }
+        }
+        keys.add("profile.<name>.num");
+        return Collections.unmodifiableList(keys);
+    }
+}
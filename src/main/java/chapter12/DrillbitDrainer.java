@@ -0,0 +1,146 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 排空单个drillbit：让它进入quiescent模式不再接收新查询，在后台线程上等待运行和排队的查询结束或到期。
+ * 只负责排空，不停止Container，缩容、滚动升级、节点排空和有序停止在排空完成后各自停止drillbit
+ *
+ * @author 徐洁阳
+ */
+public class DrillbitDrainer {
+    /**
+     * 排空期间查询drillbit负载的间隔
+     */
+    private static final long POLL_INTERVAL = 1000;
+    /**
+     * 连续多少次取不到负载后认为drillbit已经不可达
+     */
+    private static final int MAX_SAMPLE_FAILURES = 3;
+
+    private final DrillbitMetricsSampler sampler;
+    private final String quiescentUrl;
+    private final int httpPort;
+    private final int timeout;
+    private final long drainTimeout;
+    private final ExecutorService executor;
+
+    public DrillbitDrainer(DrillbitMetricsSampler sampler, Properties config) {
+        this.sampler = sampler;
+        this.quiescentUrl = DrillOnYarnConfig.getString(config, "stop.quiescent.url");
+        this.httpPort = DrillOnYarnConfig.getInt(config, "drill.http.port");
+        this.timeout = DrillOnYarnConfig.getInt(config, "autoscale.sample.timeout");
+        this.drainTimeout = DrillOnYarnConfig.getLong(config, "stop.drain.timeout") * 1000;
+        this.executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("drillbit-drain-%d").setDaemon(true).build());
+    }
+
+    /**
+     * 每个drillbit排空的最长时间(毫秒)，即stop.drain.timeout
+     */
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * 在后台排空drillbit，最多等到deadline，结果是排空报告：containerId、host、profile、
+     * outcome(drained、timeout、unreachable、interrupted或not ready)、quiesced、queriesAtStart、queriesLeft和drainMillis
+     */
+    public CompletableFuture<Map<String, Object>> drain(ContainerInfo containerInfo, long deadline) {
+        return CompletableFuture.supplyAsync(() -> drainNow(containerInfo, deadline), executor);
+    }
+
+    private Map<String, Object> drainNow(ContainerInfo containerInfo, long deadline) {
+        String host = containerInfo.getHost();
+        long start = System.currentTimeMillis();
+        String outcome;
+        boolean quiesced = false;
+        long initial = -1;
+        long remaining = -1;
+        if (!containerInfo.isReady()) {
+            outcome = "not ready";
+        } else {
+            quiesced = quiesce(host);
+            int failures = 0;
+            while (true) {
+                try {
+                    DrillbitMetrics metrics = sampler.sample(host);
+                    remaining = metrics.getRunningQueries() + metrics.getQueuedQueries();
+                    initial = initial < 0 ? remaining : initial;
+                    failures = 0;
+                    if (remaining == 0) {
+                        outcome = "drained";
+                        break;
+                    }
+                } catch (IOException e) {
+                    if (++failures >= MAX_SAMPLE_FAILURES) {
+                        outcome = "unreachable";
+                        break;
+                    }
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    outcome = "timeout";
+                    break;
+                }
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    outcome = "interrupted";
+                    break;
+                }
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("containerId", containerInfo.getContainerId().toString());
+        report.put("host", host);
+        report.put("profile", containerInfo.getProfile().getName());
+        report.put("outcome", outcome);
+        report.put("quiesced", quiesced);
+        report.put("queriesAtStart", initial);
+        report.put("queriesLeft", remaining);
+        report.put("drainMillis", System.currentTimeMillis() - start);
+        return report;
+    }
+
+    /**
+     * 开启认证等原因导致调用失败时只记录日志，drillbit已经不在注册表中接收新连接，照常等待查询结束
+     */
+    private boolean quiesce(String host) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(String.format(quiescentUrl, host, httpPort)).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            int code = connection.getResponseCode();
+            if (code >= 300) {
+                EventLog.warn("drain.quiesce.failed").with("host", host).with("code", code).log();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            EventLog.warn("drain.quiesce.failed").with("host", host).error(e).log();
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,199 @@
+package chapter12;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.util.Records;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * drillbit Container启动上下文的模板，AM启动时构建一次，只在本地化资源变化时调用refresh重新构建，
+ * 每个分配到的Container只复制模板并补上自己的字段，不再访问HDFS。
+ * standby Container使用包装命令：先预读Drill的jar，再轮询AM直到被提升后才启动drillbit。
+ * 滚动升级时切换到新版本Drill的模板，并保留上一个版本的模板用于回滚。
+ * 每个Container的堆、直接内存和代码缓存由MemoryPolicy按分配到的内存计算，通过环境变量覆盖drill-env.sh的默认值。
+ * 下发了启动脚本时由它按Container的LOCAL_DIRS生成spill和临时目录的配置后再启动drillbit
+ *
+ * @author 徐洁阳
+ */
+public class DrillbitLaunchTemplate {
+    private final YarnConfiguration yarnConfig;
+    private final MemoryPolicy memoryPolicy;
+    private Properties drillConfig;
+    private Properties previousConfig;
+    private volatile Template template;
+    private Template previous;
+    private volatile String standbyUrl;
+
+    private static class Template {
+        private final String version;
+        private final Map<String, LocalResource> localResources;
+        private final Map<String, String> environment;
+        private final List<String> commands;
+        private final List<String> standbyCommands;
+
+        private Template(String version, Map<String, LocalResource> localResources, Map<String, String> environment,
+                         List<String> commands, List<String> standbyCommands) {
+            this.version = version;
+            this.localResources = Collections.unmodifiableMap(localResources);
+            this.environment = Collections.unmodifiableMap(environment);
+            this.commands = Collections.unmodifiableList(commands);
+            this.standbyCommands = Collections.unmodifiableList(standbyCommands);
+        }
+    }
+
+    public DrillbitLaunchTemplate(YarnConfiguration yarnConfig, Properties appConfig) {
+        this.yarnConfig = yarnConfig;
+        this.drillConfig = appConfig;
+        this.memoryPolicy = DrillOnYarnConfig.getBoolean(appConfig, "memory.partition.enabled")
+                ? MemoryPartition.createPolicy(appConfig) : null;
+        refresh();
+    }
+
+    public synchronized void refresh() {
+        template = build(drillConfig);
+    }
+
+    /**
+     * 用新的drill.path、drill.archive.name和drill.upload.path构建模板，之后启动的Container使用新版本，返回新版本
+     */
+    public synchronized String upgrade(Map<String, String> drill) {
+        checkUpload(drill);
+        Properties config = new Properties();
+        config.putAll(drillConfig);
+        config.putAll(drill);
+        Template upgraded = build(config);
+        if (upgraded.version.equals(template.version)) {
+            throw new IllegalArgumentException("drill.archive.name " + upgraded.version + " is already running");
+        }
+        previousConfig = drillConfig;
+        previous = template;
+        drillConfig = config;
+        template = upgraded;
+        return upgraded.version;
+    }
+
+    /**
+     * 升级只接受客户端上传到fs.upload.dir下的安装包：上传文件名必须和drill.path一致，
+     * drill.archive.name必须是安装包解压后的目录名，不能包含路径
+     */
+    private void checkUpload(Map<String, String> drill) {
+        String fileName = FilenameUtils.getName(drill.get("drill.path"));
+        String archiveName = drill.get("drill.archive.name");
+        if (archiveName.contains("/") || archiveName.equals("..") || !fileName.startsWith(archiveName)) {
+            throw new IllegalArgumentException("drill.archive.name " + archiveName
+                    + " is not the directory name of " + fileName);
+        }
+        FileSystem fileSystem;
+        try {
+            fileSystem = FileSystem.get(yarnConfig);
+        } catch (IOException e) {
+            throw new RuntimeException("get file system error", e);
+        }
+        // makeQualified在路径不属于当前文件系统时抛出IllegalArgumentException，Path会先消去其中的..
+        Path uploadDir = fileSystem.makeQualified(new Path(drillConfig.getProperty("fs.upload.dir")));
+        Path upload = fileSystem.makeQualified(new Path(drill.get("drill.upload.path")));
+        if (!upload.toString().startsWith(uploadDir + Path.SEPARATOR) || !upload.getName().equals(fileName)) {
+            throw new IllegalArgumentException("drill.upload.path " + upload + " is not " + fileName
+                    + " under " + uploadDir);
+        }
+    }
+
+    /**
+     * 切换回升级前的模板，返回切换后的版本
+     */
+    public synchronized String rollback() {
+        if (previous == null) {
+            throw new IllegalStateException("no previous drill version to roll back to");
+        }
+        Template current = template;
+        Properties currentConfig = drillConfig;
+        template = previous;
+        drillConfig = previousConfig;
+        previous = current;
+        previousConfig = currentConfig;
+        return template.version;
+    }
+
+    public String getVersion() {
+        return template.version;
+    }
+
+    /**
+     * 没有开启memory.partition.enabled时为null，drillbit使用drill-env.sh中的设置
+     */
+    public MemoryPolicy getMemoryPolicy() {
+        return memoryPolicy;
+    }
+
+    private Template build(Properties appConfig) {
+        long startTime = System.currentTimeMillis();
+        Map<String, LocalResource> localResources;
+        try {
+            localResources = DrillLayers.buildLocalResources(FileSystem.get(yarnConfig), appConfig);
+        } catch (IOException e) {
+            throw new RuntimeException("build drillbit local resources error", e);
+        }
+
+        Map<String, String> environment = YarnUtil.buildCommonEnvironment(yarnConfig);
+        DrillLayers.addLayerEnvironment(environment, appConfig);
+
+        String drillHome = FilenameUtils.getName(appConfig.getProperty("drill.path")) +
+                "/" + appConfig.getProperty("drill.archive.name");
+        String run = StringUtils.isNotBlank(appConfig.getProperty("drill.launch.upload.path"))
+                ? DrillLayers.LAUNCH_SCRIPT_NAME + " " + drillHome : drillHome + "/bin/drillbit.sh run";
+        List<String> commands = YarnUtil.buildCommand(run);
+        // NM会把命令放进双引号里执行，命令中不能再使用双引号；提升前一直等待，预读jar让drillbit启动时从page cache加载类
+        List<String> standbyCommands = YarnUtil.buildCommand("-c '" +
+                "cat " + drillHome + "/jars/*.jar " + drillHome + "/jars/*/*.jar > /dev/null 2>&1; " +
+                "until curl -sf $DRILL_STANDBY_URL?containerId=$CONTAINER_ID | grep -q promoted.:true; " +
+                "do sleep " + DrillOnYarnConfig.getInt(appConfig, "standby.poll") + "; done; " +
+                "exec $SHELL " + run + "'");
+
+        String version = appConfig.getProperty("drill.archive.name");
+        EventLog.info("launch.template.built").with("version", version).with("localResources", localResources.size())
+                .with("millis", System.currentTimeMillis() - startTime).log();
+        return new Template(version, localResources, environment, commands, standbyCommands);
+    }
+
+    /**
+     * standby Container轮询的AM地址，注册AM后设置
+     */
+    public void setStandbyUrl(String standbyUrl) {
+        this.standbyUrl = standbyUrl;
+    }
+
+    public ContainerLaunchContext newLaunchContext(Container container, ContainerInfo containerInfo) {
+        Template current = template;
+        containerInfo.setVersion(current.version);
+        ContainerLaunchContext containerContext = Records.newRecord(ContainerLaunchContext.class);
+        containerContext.setLocalResources(new LinkedHashMap<>(current.localResources));
+        Map<String, String> environment = new LinkedHashMap<>(current.environment);
+        if (memoryPolicy != null) {
+            // 按RM实际分配的内存划分，profile中显式配置的堆和直接内存优先，提交时已经检查过能否放下
+            MemoryPartition partition = memoryPolicy.partition(container.getResource().getMemory())
+                    .override(containerInfo.getProfile());
+            containerInfo.setMemoryPartition(partition);
+            environment.putAll(partition.toEnvironment());
+        }
+        environment.putAll(containerInfo.getProfile().getEnvironment());
+        environment.put("DRILL_HOST_NAME", container.getNodeId().getHost());
+        if (containerInfo.isStandby()) {
+            environment.put("DRILL_STANDBY_URL", standbyUrl);
+        }
+        containerContext.setEnvironment(environment);
+        containerContext.setCommands(containerInfo.isStandby() ? current.standbyCommands : current.commands);
+        return containerContext;
+    }
+}
@@ -0,0 +1,75 @@
+package chapter12;
+
+/**
+ * 一次采样得到的drillbit负载指标
+ *
+ * @author 徐洁阳
+ */
+public class DrillbitMetrics {
+    private final String host;
+    private final long sampleTime;
+    private final long runningQueries;
+    private final long queuedQueries;
+    private final long heapUsed;
+    private final long heapMax;
+    private final long directUsed;
+    private final long directMax;
+
+    public DrillbitMetrics(String host, long runningQueries, long queuedQueries, long heapUsed, long heapMax,
+                           long directUsed, long directMax) {
+        this.host = host;
+        this.sampleTime = System.currentTimeMillis();
+        this.runningQueries = runningQueries;
+        this.queuedQueries = queuedQueries;
+        this.heapUsed = heapUsed;
+        this.heapMax = heapMax;
+        this.directUsed = directUsed;
+        this.directMax = directMax;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public long getSampleTime() {
+        return sampleTime;
+    }
+
+    public long getRunningQueries() {
+        return runningQueries;
+    }
+
+    public long getQueuedQueries() {
+        return queuedQueries;
+    }
+
+    public long getHeapUsed() {
+        return heapUsed;
+    }
+
+    public long getHeapMax() {
+        return heapMax;
+    }
+
+    public long getDirectUsed() {
+        return directUsed;
+    }
+
+    public long getDirectMax() {
+        return directMax;
+    }
+
+    public double getHeapUsage() {
+        return heapMax > 0 ? (double) heapUsed / heapMax : 0;
+    }
+
+    public double getDirectUsage() {
+        return directMax > 0 ? (double) directUsed / directMax : 0;
+    }
+
+    @Override
+    public String toString() {
+        return host + "{running=" + runningQueries + ", queued=" + queuedQueries + ", heap=" + heapUsed + "/" + heapMax
+                + ", direct=" + directUsed + "/" + directMax + "}";
+    }
+}
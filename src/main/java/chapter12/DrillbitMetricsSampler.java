@@ -0,0 +1,59 @@
+package chapter12;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * 通过drillbit web服务的/status/metrics接口采样负载指标，
+ * urlFormat的两个参数是host和端口，测试时可以指向本地的桩服务
+ *
+ * @author 徐洁阳
+ */
+public class DrillbitMetricsSampler {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String urlFormat;
+    private final int port;
+    private final int timeout;
+
+    public DrillbitMetricsSampler(String urlFormat, int port, int timeout) {
+        this.urlFormat = urlFormat;
+        this.port = port;
+        this.timeout = timeout;
+    }
+
+    public DrillbitMetrics sample(String host) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(String.format(urlFormat, host, port)).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        try (InputStream in = connection.getInputStream()) {
+            JsonNode metrics = MAPPER.readTree(in);
+            return new DrillbitMetrics(host,
+                    metric(metrics, "drill.queries.running"),
+                    metric(metrics, "drill.queries.enqueued"),
+                    metric(metrics, "heap.used"),
+                    metric(metrics, "heap.max"),
+                    metric(metrics, "drill.allocator.root.used"),
+                    metric(metrics, "drill.allocator.root.limit"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * drill的指标可能是gauge也可能是counter，取不到时返回0
+     */
+    private static long metric(JsonNode metrics, String name) {
+        JsonNode gauge = metrics.path("gauges").path(name).path("value");
+        if (gauge.isNumber()) {
+            return gauge.asLong();
+        }
+        JsonNode counter = metrics.path("counters").path(name).path("count");
+        return counter.isNumber() ? counter.asLong() : 0;
+    }
+}
@@ -0,0 +1,152 @@
+package chapter12;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * 一类drillbit的Container规格：资源、个数、优先级、节点约束和JVM设置。
+ * RM分配的Container只能通过优先级区分属于哪个profile，所以每个profile的优先级必须不同
+ *
+ * @author 徐洁阳
+ */
+public class DrillbitProfile {
+    public static final String DEFAULT_NAME = "default";
+
+    private final String name;
+    private final Resource capability;
+    private final Priority priority;
+    private final int num;
+    private final int standby;
+    private final String nodeLabel;
+    private final Set<String> hosts;
+    private final Map<String, String> environment;
+
+    public DrillbitProfile(String name, Resource capability, Priority priority, int num, int standby, String nodeLabel,
+                           Set<String> hosts, Map<String, String> environment) {
+        this.name = name;
+        this.capability = capability;
+        this.priority = priority;
+        this.num = num;
+        this.standby = standby;
+        this.nodeLabel = nodeLabel;
+        this.hosts = Collections.unmodifiableSet(hosts);
+        this.environment = Collections.unmodifiableMap(environment);
+    }
+
+    /**
+     * profiles为空时只有一个default profile，使用container.*、containers.num和standby.num；
+     * 否则按profiles中的顺序读取profile.<name>.*
+     */
+    public static List<DrillbitProfile> parse(Properties config) {
+        List<DrillbitProfile> profiles = new ArrayList<>();
+        String names = DrillOnYarnConfig.getString(config, "profiles");
+        if (StringUtils.isBlank(names)) {
+            profiles.add(new DrillbitProfile(DEFAULT_NAME,
+                    Resource.newInstance(DrillOnYarnConfig.getInt(config, "container.memory"),
+                            DrillOnYarnConfig.getInt(config, "container.vCores")),
+                    Priority.newInstance(DrillOnYarnConfig.getInt(config, "container.priority")),
+                    DrillOnYarnConfig.getInt(config, "containers.num"),
+                    DrillOnYarnConfig.getInt(config, "standby.num"),
+                    null, Collections.<String>emptySet(), Collections.<String, String>emptyMap()));
+            return profiles;
+        }
+
+        Map<Integer, String> priorities = new HashMap<>();
+        for (String name : StringUtils.split(names, ',')) {
+            name = name.trim();
+            String prefix = "profile." + name + ".";
+            int priority = Integer.parseInt(required(config, prefix + "priority"));
+            String previous = priorities.put(priority, name);
+            if (previous != null) {
+                throw new IllegalArgumentException("profile " + name + " and " + previous + " have the same priority "
+                        + priority + ", allocated containers can not be matched back to their profile");
+            }
+            Set<String> hosts = new LinkedHashSet<>();
+            for (String host : StringUtils.split(config.getProperty(prefix + "hosts", ""), ',')) {
+                if (StringUtils.isNotBlank(host)) {
+                    hosts.add(host.trim());
+                }
+            }
+            Map<String, String> environment = new LinkedHashMap<>();
+            putIfNotBlank(environment, "DRILL_HEAP", config.getProperty(prefix + "heap"));
+            putIfNotBlank(environment, "DRILL_MAX_DIRECT_MEMORY", config.getProperty(prefix + "direct.memory"));
+            putIfNotBlank(environment, "DRILL_JAVA_OPTS", config.getProperty(prefix + "java.opts"));
+            profiles.add(new DrillbitProfile(name,
+                    Resource.newInstance(Integer.parseInt(required(config, prefix + "memory")),
+                            Integer.parseInt(required(config, prefix + "vCores"))),
+                    Priority.newInstance(priority),
+                    Integer.parseInt(required(config, prefix + "num")),
+                    Integer.parseInt(config.getProperty(prefix + "standby", "0")),
+                    StringUtils.trimToNull(config.getProperty(prefix + "node.label")), hosts, environment));
+        }
+        return profiles;
+    }
+
+    private static String required(Properties config, String key) {
+        String value = config.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            throw new IllegalArgumentException(key + " is required");
+        }
+        return value.trim();
+    }
+
+    private static void putIfNotBlank(Map<String, String> environment, String key, String value) {
+        if (StringUtils.isNotBlank(value)) {
+            environment.put(key, value.trim());
+        }
+    }
+
+    /**
+     * 节点是否满足profile的主机和节点标签约束
+     */
+    public boolean accepts(NodeReport nodeReport) {
+        if (!hosts.isEmpty() && !hosts.contains(nodeReport.getNodeId().getHost())) {
+            return false;
+        }
+        return nodeLabel == null || (nodeReport.getNodeLabels() != null && nodeReport.getNodeLabels().contains(nodeLabel));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Resource getCapability() {
+        return capability;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public int getNum() {
+        return num;
+    }
+
+    public int getStandby() {
+        return standby;
+    }
+
+    public String getNodeLabel() {
+        return nodeLabel;
+    }
+
+    public Set<String> getHosts() {
+        return hosts;
+    }
+
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+}
@@ -0,0 +1,123 @@
+package chapter12;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 客户端选择drillbit的工具：缓存AM的/endpoints注册表ttl毫秒，在接收新连接的drillbit中选负载最低的。
+ * 负载是最近几次采样的平均运行加排队查询数，再加上本地在这次缓存期间已经选过它的次数，避免缓存期间所有连接都发给同一个drillbit；
+ * 刷新失败时在maxStale毫秒内继续使用旧的注册表
+ *
+ * @author 徐洁阳
+ */
+public class DrillbitSelector {
+    private final AMClient amClient;
+    private final long ttl;
+    private final long maxStale;
+    private final Map<String, Integer> picks = new HashMap<>();
+
+    private List<Map<String, Object>> endpoints = Collections.emptyList();
+    private long fetchTime;
+    private long expireTime;
+
+    /**
+     * ttl不大于0时使用AM建议的缓存时间
+     */
+    public DrillbitSelector(AMClient amClient, long ttl) {
+        this.amClient = amClient;
+        this.ttl = ttl;
+        this.maxStale = Math.max(ttl, 5000) * 6;
+    }
+
+    /**
+     * 返回负载最低的可用drillbit，包含host、userPort、httpPort等字段；没有可用的drillbit时抛出RuntimeException
+     */
+    public synchronized Map<String, Object> select() {
+        refresh();
+        List<Map<String, Object>> candidates = new ArrayList<>();
+        for (Map<String, Object> endpoint : endpoints) {
+            if (Boolean.TRUE.equals(endpoint.get("accepting"))) {
+                candidates.add(endpoint);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new RuntimeException("no drillbit is accepting connections");
+        }
+        // 先打乱，负载相同的drillbit随机选择
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        Map<String, Object> best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Map<String, Object> endpoint : candidates) {
+            double load = getLoad(endpoint) + picks.getOrDefault((String) endpoint.get("containerId"), 0);
+            if (load < bestLoad) {
+                best = endpoint;
+                bestLoad = load;
+            }
+        }
+        picks.merge((String) best.get("containerId"), 1, Integer::sum);
+        return best;
+    }
+
+    /**
+     * 负载最低的drillbit的JDBC地址
+     */
+    public String selectJdbcUrl() {
+        Map<String, Object> endpoint = select();
+        return "jdbc:drill:drillbit=" + endpoint.get("host") + ":" + endpoint.get("userPort");
+    }
+
+    /**
+     * 连接失败的drillbit在这次缓存期间不再被选择
+     */
+    public synchronized void markDown(Map<String, Object> endpoint) {
+        List<Map<String, Object>> remaining = new ArrayList<>(endpoints);
+        remaining.removeIf(e -> e.get("containerId").equals(endpoint.get("containerId")));
+        endpoints = remaining;
+    }
+
+    public synchronized List<Map<String, Object>> getEndpoints() {
+        refresh();
+        return endpoints;
+    }
+
+    /**
+     * 最近几次采样的平均运行加排队查询数，还没有采样的drillbit负载为0
+     */
+    @SuppressWarnings("unchecked")
+    public static double getLoad(Map<String, Object> endpoint) {
+        List<Map<String, Object>> load = (List<Map<String, Object>>) endpoint.get("load");
+        if (load == null || load.isEmpty()) {
+            return 0;
+        }
+        double total = 0;
+        for (Map<String, Object> sample : load) {
+            total += ((Number) sample.get("running")).doubleValue() + ((Number) sample.get("queued")).doubleValue();
+        }
+        return total / load.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        if (now < expireTime) {
+            return;
+        }
+        try {
+            Map<String, Object> registry = amClient.get("/endpoints");
+            endpoints = (List<Map<String, Object>>) registry.get("endpoints");
+            picks.clear();
+            fetchTime = now;
+            expireTime = now + (ttl > 0 ? ttl : ((Number) registry.get("ttl")).longValue());
+        } catch (RuntimeException e) {
+            if (now - fetchTime > maxStale) {
+                throw e;
+            }
+            // AM暂时不可用时继续使用旧的注册表，稍后再重试
+            expireTime = now + 1000;
+        }
+    }
+}
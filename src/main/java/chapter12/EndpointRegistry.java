@@ -0,0 +1,162 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AM维护的drillbit地址注册表：定时并发采样所有就绪drillbit的负载，每个drillbit保留最近samples次采样，
+ * 通过/endpoints提供给客户端，客户端据此把新连接发给负载最低的drillbit，见DrillbitSelector；
+ * 开启内存划分时采样结果同时交给MemoryMonitor检查drillbit是否接近Container的内存上限
+ *
+ * @author 徐洁阳
+ */
+public class EndpointRegistry {
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final DrillbitMetricsSampler sampler;
+    private final int userPort;
+    private final int httpPort;
+    private final long interval;
+    private final int maxSamples;
+    private final long ttl;
+    private final ExecutorService sampleExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Deque<DrillbitMetrics>> samples = new ConcurrentHashMap<>();
+    private MemoryMonitor memoryMonitor;
+
+    public EndpointRegistry(AMRMCallbackHandler amrmCallbackHandler, DrillbitMetricsSampler sampler, Properties config) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.sampler = sampler;
+        this.userPort = DrillOnYarnConfig.getInt(config, "drill.user.port");
+        this.httpPort = DrillOnYarnConfig.getInt(config, "drill.http.port");
+        this.interval = DrillOnYarnConfig.getLong(config, "registry.interval");
+        this.maxSamples = DrillOnYarnConfig.getInt(config, "registry.samples");
+        this.ttl = DrillOnYarnConfig.getLong(config, "registry.ttl") * 1000;
+        this.sampleExecutor = Executors.newFixedThreadPool(DrillOnYarnConfig.getInt(config, "autoscale.sample.threads"),
+                new ThreadFactoryBuilder().setNameFormat("registry-sample-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("endpoint-registry").setDaemon(true).build());
+    }
+
+    public void setMemoryMonitor(MemoryMonitor memoryMonitor) {
+        this.memoryMonitor = memoryMonitor;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sampleAll();
+                } catch (RuntimeException e) {
+                    EventLog.warn("registry.sample.failed").error(e).log();
+                }
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 并发采样就绪的drillbit，采样失败的保留之前的样本，已经不在运行的drillbit的样本被丢弃
+     */
+    void sampleAll() {
+        Map<ContainerInfo, Future<DrillbitMetrics>> futures = new LinkedHashMap<>();
+        for (final ContainerInfo containerInfo : amrmCallbackHandler.getRunningContainers()) {
+            futures.put(containerInfo, sampleExecutor.submit(() -> sampler.sample(containerInfo.getHost())));
+        }
+        for (Map.Entry<ContainerInfo, Future<DrillbitMetrics>> entry : futures.entrySet()) {
+            String containerId = entry.getKey().getContainerId().toString();
+            try {
+                Deque<DrillbitMetrics> recent = samples.computeIfAbsent(containerId, k -> new ArrayDeque<>());
+                DrillbitMetrics metrics = entry.getValue().get();
+                synchronized (recent) {
+                    recent.addFirst(metrics);
+                    while (recent.size() > maxSamples) {
+                        recent.removeLast();
+                    }
+                }
+                if (memoryMonitor != null) {
+                    memoryMonitor.check(entry.getKey(), metrics);
+                }
+            } catch (ExecutionException e) {
+                EventLog.debug("registry.sample.failed").with("containerId", containerId)
+                        .with("error", e.getCause().getMessage()).log();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Set<String> live = new HashSet<>();
+        for (ContainerInfo containerInfo : amrmCallbackHandler.getContainers()) {
+            live.add(containerInfo.getContainerId().toString());
+        }
+        samples.keySet().retainAll(live);
+    }
+
+    /**
+     * 除standby以外的所有drillbit，只有accepting为true的drillbit应该接收新连接，排空、等待升级替换和停止中的drillbit不接收；
+     * load按从新到旧排列，ttl是建议的客户端缓存时间(毫秒)
+     */
+    public Map<String, Object> getEndpoints() {
+        List<Map<String, Object>> endpoints = new ArrayList<>();
+        for (ContainerInfo containerInfo : amrmCallbackHandler.getContainers()) {
+            if (containerInfo.isStandby()) {
+                continue;
+            }
+            String containerId = containerInfo.getContainerId().toString();
+            Map<String, Object> endpoint = new LinkedHashMap<>();
+            endpoint.put("containerId", containerId);
+            endpoint.put("host", containerInfo.getHost());
+            endpoint.put("userPort", userPort);
+            endpoint.put("httpPort", httpPort);
+            endpoint.put("profile", containerInfo.getProfile().getName());
+            endpoint.put("version", containerInfo.getVersion());
+            endpoint.put("state", containerInfo.getState());
+            endpoint.put("memoryHigh", containerInfo.isMemoryHigh());
+            endpoint.put("accepting", containerInfo.isReady() && !containerInfo.isDraining()
+                    && !containerInfo.isSuperseded() && !amrmCallbackHandler.isShuttingDown());
+            List<Map<String, Object>> load = new ArrayList<>();
+            Deque<DrillbitMetrics> recent = samples.get(containerId);
+            if (recent != null) {
+                synchronized (recent) {
+                    for (DrillbitMetrics metrics : recent) {
+                        Map<String, Object> sample = new LinkedHashMap<>();
+                        sample.put("time", metrics.getSampleTime());
+                        sample.put("running", metrics.getRunningQueries());
+                        sample.put("queued", metrics.getQueuedQueries());
+                        sample.put("heapUsage", metrics.getHeapUsage());
+                        sample.put("directUsage", metrics.getDirectUsage());
+                        load.add(sample);
+                    }
+                }
+            }
+            endpoint.put("load", load);
+            endpoints.add(endpoint);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("version", amrmCallbackHandler.getStatusVersion());
+        result.put("time", System.currentTimeMillis());
+        result.put("ttl", ttl);
+        result.put("endpoints", endpoints);
+        return result;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        sampleExecutor.shutdownNow();
+    }
+}
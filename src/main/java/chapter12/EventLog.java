@@ -0,0 +1,211 @@
+package chapter12;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * AM的异步事件日志：调用线程只把事件放进有界环形缓冲区，由后台线程格式化后批量写到标准输出，
+ * 缓冲区满时丢弃事件并计数，不阻塞AMRM回调线程。事件按级别过滤，输出为 时间 级别 事件名 key=value...
+ *
+ * @author 徐洁阳
+ */
+public final class EventLog {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Event DISABLED = new Event(null, null);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+    private static volatile BlockingQueue<Event> buffer = new ArrayBlockingQueue<>(8192);
+    /**
+     * 放入事件时持有读锁，更换缓冲区时持有写锁，保证更换后不会再有事件放进旧缓冲区
+     */
+    private static final ReadWriteLock bufferLock = new ReentrantReadWriteLock();
+
+    static {
+        Thread writer = new Thread(EventLog::write, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * 按log.level和log.buffer设置级别和缓冲区大小，旧缓冲区中的事件移到新缓冲区，放不下的计入丢弃数
+     */
+    public static void configure(Properties config) {
+        level = Level.valueOf(DrillOnYarnConfig.getString(config, "log.level").toUpperCase());
+        int capacity = DrillOnYarnConfig.getInt(config, "log.buffer");
+        bufferLock.writeLock().lock();
+        try {
+            if (capacity != buffer.remainingCapacity() + buffer.size()) {
+                BlockingQueue<Event> previous = buffer;
+                buffer = new ArrayBlockingQueue<>(capacity);
+                previous.drainTo(buffer, capacity);
+                List<Event> overflow = new ArrayList<>();
+                previous.drainTo(overflow);
+                dropped.addAndGet(overflow.size());
+            }
+        } finally {
+            bufferLock.writeLock().unlock();
+        }
+    }
+
+    public static boolean isEnabled(Level eventLevel) {
+        return eventLevel.compareTo(level) >= 0;
+    }
+
+    public static Event debug(String name) {
+        return event(Level.DEBUG, name);
+    }
+
+    public static Event info(String name) {
+        return event(Level.INFO, name);
+    }
+
+    public static Event warn(String name) {
+        return event(Level.WARN, name);
+    }
+
+    public static Event error(String name) {
+        return event(Level.ERROR, name);
+    }
+
+    private static Event event(Level eventLevel, String name) {
+        return isEnabled(eventLevel) ? new Event(eventLevel, name) : DISABLED;
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 等待缓冲区写完，最多timeout毫秒，AM退出前调用
+     */
+    public static void flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!buffer.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void write() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        List<Event> batch = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        long reported = 0;
+        while (true) {
+            try {
+                Event first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, 1023);
+                long droppedNow = dropped.get();
+                if (droppedNow > reported) {
+                    batch.add(new Event(Level.WARN, "log.dropped").with("events", droppedNow - reported));
+                    reported = droppedNow;
+                }
+                for (Event event : batch) {
+                    line.setLength(0);
+                    event.format(line, dateFormat);
+                    (event.level.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(line);
+                }
+                batch.clear();
+                System.out.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 一条结构化事件，值在写线程里才转成字符串，调用方只应放入不可变的值
+     */
+    public static final class Event {
+        private final Level level;
+        private final String name;
+        private final long time;
+        private final List<Object> fields;
+        private Throwable throwable;
+
+        private Event(Level level, String name) {
+            this.level = level;
+            this.name = name;
+            this.time = System.currentTimeMillis();
+            this.fields = level == null ? null : new ArrayList<>(8);
+        }
+
+        public Event with(String key, Object value) {
+            if (fields != null) {
+                fields.add(key);
+                fields.add(value);
+            }
+            return this;
+        }
+
+        public Event error(Throwable t) {
+            if (fields != null) {
+                throwable = t;
+            }
+            return this;
+        }
+
+        public void log() {
+            if (fields == null) {
+                return;
+            }
+            bufferLock.readLock().lock();
+            try {
+                if (!buffer.offer(this)) {
+                    dropped.incrementAndGet();
+                }
+            } finally {
+                bufferLock.readLock().unlock();
+            }
+        }
+
+        private void format(StringBuilder line, SimpleDateFormat dateFormat) {
+            line.append(dateFormat.format(new Date(time))).append(' ').append(level).append(' ').append(name);
+            for (int i = 0; i < fields.size(); i += 2) {
+                line.append(' ').append(fields.get(i)).append('=');
+                appendValue(line, String.valueOf(fields.get(i + 1)));
+            }
+            if (throwable != null) {
+                line.append(" error=");
+                appendValue(line, String.valueOf(throwable));
+                for (Throwable cause = throwable.getCause(); cause != null; cause = cause.getCause()) {
+                    line.append(" cause=");
+                    appendValue(line, String.valueOf(cause));
+                }
+            }
+        }
+
+        private static void appendValue(StringBuilder line, String value) {
+            if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.indexOf('=') >= 0) {
+                line.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package chapter12;
+
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * 有序停止Drill on YARN：不再扩缩容和替换drillbit，让每个drillbit进入quiescent模式不再接收新查询，
+ * 并发等待各自运行和排队的查询结束，最多等到drain.timeout，排空后立即停止这个drillbit；
+ * 所有Container结束后按是否有查询被中断给出最终状态注销AM，每个drillbit的排空时间记录在停止报告中
+ *
+ * @author 徐洁阳
+ */
+public class GracefulShutdown {
+    private enum Phase {
+        RUNNING, DRAINING, STOPPING, FINISHED
+    }
+
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final DrillbitDrainer drainer;
+    private final long drainTimeout;
+    private final long containerTimeout;
+    private final Runnable beforeDrain;
+    private final BiConsumer<FinalApplicationStatus, String> finisher;
+    private final List<Map<String, Object>> drillbits = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile Phase phase = Phase.RUNNING;
+    private long startTime;
+    private long deadline;
+    private long finishTime;
+    private FinalApplicationStatus finalStatus;
+    private String diagnostics;
+
+    /**
+     * beforeDrain在开始排空前调用，用来停止自动扩缩容和滚动升级；finisher在所有Container结束后调用，负责注销AM并退出
+     */
+    public GracefulShutdown(AMRMCallbackHandler amrmCallbackHandler, DrillbitDrainer drainer, Properties config,
+                            Runnable beforeDrain, BiConsumer<FinalApplicationStatus, String> finisher) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.drainer = drainer;
+        this.drainTimeout = drainer.getDrainTimeout();
+        this.containerTimeout = DrillOnYarnConfig.getLong(config, "stop.container.timeout") * 1000;
+        this.beforeDrain = beforeDrain;
+        this.finisher = finisher;
+    }
+
+    /**
+     * 开始停止，timeout参数(秒)可以覆盖stop.drain.timeout；已经在停止中时只返回进度
+     */
+    public synchronized Map<String, Object> start(Map<String, String> params) {
+        if (phase != Phase.RUNNING) {
+            return getReport();
+        }
+        long drainTimeout = params.containsKey("timeout") ? Long.parseLong(params.get("timeout")) * 1000 : this.drainTimeout;
+        if (drainTimeout < 0) {
+            throw new IllegalArgumentException("timeout can not be negative");
+        }
+        startTime = System.currentTimeMillis();
+        deadline = startTime + drainTimeout;
+        phase = Phase.DRAINING;
+        EventLog.info("shutdown.started").with("drainTimeoutMillis", drainTimeout).log();
+        // 不是守护线程，AM的main线程早已返回，由它负责走完停止流程
+        Thread thread = new Thread(this::run, "graceful-shutdown");
+        thread.start();
+        return getReport();
+    }
+
+    /**
+     * 不排空drillbit，直接以FAILED结束AM，用于和RM的通信出错后无法继续管理Container的情况
+     */
+    public void abort(final String diagnostics) {
+        synchronized (this) {
+            if (phase == Phase.FINISHED) {
+                return;
+            }
+            if (startTime == 0) {
+                startTime = System.currentTimeMillis();
+            }
+        }
+        EventLog.error("shutdown.aborted").with("diagnostics", diagnostics).log();
+        new Thread(() -> finish(FinalApplicationStatus.FAILED, diagnostics), "graceful-shutdown").start();
+    }
+
+    private void run() {
+        try {
+            beforeDrain.run();
+            amrmCallbackHandler.shutdown();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (final ContainerInfo containerInfo : amrmCallbackHandler.getContainers()) {
+                if (!containerInfo.isStandby()) {
+                    futures.add(drainer.drain(containerInfo, deadline)
+                            .thenAccept(drillbit -> onDrained(containerInfo, drillbit)));
+                }
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get();
+            }
+
+            synchronized (this) {
+                phase = Phase.STOPPING;
+            }
+            long stopDeadline = System.currentTimeMillis() + containerTimeout;
+            while (amrmCallbackHandler.getAllocatedCount() > 0 && System.currentTimeMillis() < stopDeadline) {
+                Thread.sleep(200);
+            }
+            int interrupted = 0;
+            synchronized (drillbits) {
+                for (Map<String, Object> drillbit : drillbits) {
+                    interrupted += drillbit.get("outcome").equals("timeout") ? 1 : 0;
+                }
+            }
+            int remaining = amrmCallbackHandler.getAllocatedCount();
+            // 有drillbit到期时仍有查询，说明这些查询被中断了
+            finish(interrupted == 0 ? FinalApplicationStatus.SUCCEEDED : FinalApplicationStatus.KILLED,
+                    "stopped " + drillbits.size() + " drillbits, " + interrupted + " with queries left after "
+                            + (deadline - startTime) / 1000 + "s" + (remaining > 0 ? ", " + remaining + " containers not confirmed stopped" : ""));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(FinalApplicationStatus.FAILED, "shutdown interrupted");
+        } catch (ExecutionException | RuntimeException e) {
+            EventLog.error("shutdown.failed").error(e).log();
+            finish(FinalApplicationStatus.FAILED, "shutdown failed: " + e);
+        }
+    }
+
+    /**
+     * 排空完成后停止drillbit，并记录它的排空报告
+     */
+    private void onDrained(ContainerInfo containerInfo, Map<String, Object> drillbit) {
+        amrmCallbackHandler.stopForShutdown(containerInfo);
+        drillbits.add(drillbit);
+        EventLog.info("shutdown.drained").with("containerId", containerInfo.getContainerId())
+                .with("host", containerInfo.getHost()).with("outcome", drillbit.get("outcome"))
+                .with("queriesAtStart", drillbit.get("queriesAtStart")).with("queriesLeft", drillbit.get("queriesLeft"))
+                .with("drainMillis", drillbit.get("drainMillis")).log();
+    }
+
+    private void finish(FinalApplicationStatus status, String diagnostics) {
+        synchronized (this) {
+            if (phase == Phase.FINISHED) {
+                return;
+            }
+            this.finalStatus = status;
+            this.diagnostics = diagnostics;
+            this.finishTime = System.currentTimeMillis();
+            this.phase = Phase.FINISHED;
+        }
+        EventLog.info("shutdown.finished").with("status", status).with("diagnostics", diagnostics)
+                .with("millis", finishTime - startTime).with("report", getReport().get("drillbits")).log();
+        drainer.stop();
+        finisher.accept(status, diagnostics);
+    }
+
+    /**
+     * 停止进度和每个drillbit的排空报告，按排空时间从长到短排列
+     */
+    public synchronized Map<String, Object> getReport() {
+        List<Map<String, Object>> report;
+        synchronized (drillbits) {
+            report = new ArrayList<>(drillbits);
+        }
+        report.sort(Comparator.comparing((Map<String, Object> drillbit) -> (Long) drillbit.get("drainMillis")).reversed());
+        Map<String, Integer> outcomes = new TreeMap<>();
+        long maxDrainMillis = 0;
+        for (Map<String, Object> drillbit : report) {
+            outcomes.merge((String) drillbit.get("outcome"), 1, Integer::sum);
+            maxDrainMillis = Math.max(maxDrainMillis, (Long) drillbit.get("drainMillis"));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("phase", phase.name().toLowerCase());
+        result.put("startTime", startTime);
+        result.put("deadline", deadline);
+        result.put("finishTime", finishTime);
+        result.put("remaining", amrmCallbackHandler.getAllocatedCount());
+        result.put("outcomes", outcomes);
+        result.put("maxDrainMillis", maxDrainMillis);
+        result.put("finalStatus", finalStatus == null ? null : finalStatus.name());
+        result.put("diagnostics", diagnostics);
+        result.put("drillbits", report);
+        return result;
+    }
+}
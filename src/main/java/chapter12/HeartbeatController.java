@@ -0,0 +1,81 @@
+package chapter12;
+
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 根据是否有未满足的Container请求调整AM的心跳间隔：有请求时快速心跳以尽快拿到分配结果，
+ * 集群达到目标个数后放慢心跳，同时统计从发出请求到分配到Container的延迟
+ *
+ * @author 徐洁阳
+ */
+public class HeartbeatController {
+    private final AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync;
+    private final LatencyHistogram allocationLatency;
+    private int fastInterval;
+    private int slowInterval;
+    private int currentInterval;
+    private int pendingRequests;
+    private boolean shuttingDown;
+
+    public HeartbeatController(AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync, Properties config,
+                               int initialInterval, AMMetrics metrics) {
+        this.amrmClientAsync = amrmClientAsync;
+        this.allocationLatency = metrics.histogram("drillbit_request_to_allocation_ms",
+                "Time from adding a container request to the container being allocated");
+        metrics.gauge("am_heartbeat_interval_ms", "Current AM heartbeat interval", this::getCurrentInterval);
+        this.fastInterval = DrillOnYarnConfig.getInt(config, "am.heartbeat.fast");
+        this.slowInterval = DrillOnYarnConfig.getInt(config, "am.heartbeat.slow");
+        this.currentInterval = initialInterval;
+    }
+
+    /**
+     * 重新读取快慢心跳间隔，并按最近一次的请求数立即生效
+     */
+    public synchronized void reconfigure(Properties config) {
+        fastInterval = DrillOnYarnConfig.getInt(config, "am.heartbeat.fast");
+        slowInterval = DrillOnYarnConfig.getInt(config, "am.heartbeat.slow");
+        update(pendingRequests);
+    }
+
+    /**
+     * Container请求数变化后调用
+     */
+    public synchronized void update(int pendingRequests) {
+        this.pendingRequests = pendingRequests;
+        int interval = pendingRequests > 0 || shuttingDown ? fastInterval : slowInterval;
+        if (interval != currentInterval) {
+            EventLog.info("heartbeat.interval").with("fromMillis", currentInterval).with("toMillis", interval)
+                    .with("pendingRequests", pendingRequests).log();
+            amrmClientAsync.setHeartbeatInterval(interval);
+            currentInterval = interval;
+        }
+    }
+
+    /**
+     * 停止流程中使用快心跳，尽快收到drillbit结束的通知
+     */
+    public synchronized void shutdown() {
+        shuttingDown = true;
+        update(0);
+    }
+
+    public void recordAllocation(long requestTime) {
+        allocationLatency.record(System.currentTimeMillis() - requestTime);
+    }
+
+    public synchronized int getCurrentInterval() {
+        return currentInterval;
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("heartbeatInterval", currentInterval);
+        metrics.put("allocationLatency", allocationLatency.snapshot());
+        return metrics;
+    }
+}
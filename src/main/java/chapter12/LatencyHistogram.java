@@ -0,0 +1,90 @@
+package chapter12;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定桶的延迟直方图(毫秒)，可以被多个线程并发记录
+ *
+ * @author 徐洁阳
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+        long current;
+        while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 按桶的上界估算分位数
+     */
+    public long percentile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 每个桶上界(le)对应的累计个数，最后一个桶为+Inf
+     */
+    public Map<String, Long> cumulativeBuckets() {
+        Map<String, Long> cumulative = new LinkedHashMap<>();
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            cumulative.put(String.valueOf(BOUNDS[i]), seen);
+        }
+        cumulative.put("+Inf", seen + buckets.get(BOUNDS.length));
+        return cumulative;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        long total = count.get();
+        snapshot.put("count", total);
+        snapshot.put("avg", total == 0 ? 0 : sum.get() / total);
+        snapshot.put("p50", percentile(0.5));
+        snapshot.put("p90", percentile(0.9));
+        snapshot.put("p99", percentile(0.99));
+        snapshot.put("max", max.get());
+        return snapshot;
+    }
+}
@@ -0,0 +1,41 @@
+package chapter12;
+
+import java.util.Properties;
+
+/**
+ * 根据drillbit采样得到的直接内存用量估算JVM占用的内存：堆按-Xms等于-Xmx全部计入，加上代码缓存和已用的直接内存，
+ * 超过Container内存的warn.ratio时标记为内存过高，剩下的余量很可能不够线程栈和元空间，drillbit随时会被NM杀掉。
+ * Hadoop 2.7的NM Container状态不包含资源使用量，所以用drillbit自己的指标
+ *
+ * @author 徐洁阳
+ */
+public class MemoryMonitor {
+    private final MemoryPolicy policy;
+    private final double warnRatio;
+
+    public MemoryMonitor(MemoryPolicy policy, Properties config) {
+        this.policy = policy;
+        this.warnRatio = DrillOnYarnConfig.getDouble(config, "memory.warn.ratio");
+    }
+
+    public void check(ContainerInfo containerInfo, DrillbitMetrics metrics) {
+        MemoryPartition partition = containerInfo.getMemoryPartition();
+        if (partition == null) {
+            partition = policy.partition(containerInfo.getProfile().getCapability().getMemory())
+                    .override(containerInfo.getProfile());
+            containerInfo.setMemoryPartition(partition);
+        }
+        double usage = partition.getUsage(metrics.getDirectUsed());
+        boolean high = usage >= warnRatio || metrics.getDirectUsage() >= warnRatio;
+        if (high && !containerInfo.isMemoryHigh()) {
+            EventLog.warn("container.memory.high").with("containerId", containerInfo.getContainerId())
+                    .with("host", containerInfo.getHost()).with("usage", String.format("%.3f", usage))
+                    .with("directUsed", metrics.getDirectUsed()).with("directMax", metrics.getDirectMax())
+                    .with("heapUsed", metrics.getHeapUsed()).with("partition", partition).log();
+        } else if (!high && containerInfo.isMemoryHigh()) {
+            EventLog.info("container.memory.normal").with("containerId", containerInfo.getContainerId())
+                    .with("host", containerInfo.getHost()).with("usage", String.format("%.3f", usage)).log();
+        }
+        containerInfo.setMemoryHigh(high);
+    }
+}
@@ -0,0 +1,127 @@
+package chapter12;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 一个drillbit Container的内存划分(MB)，通过drill-env.sh读取的环境变量传给drillbit.sh
+ *
+ * @author 徐洁阳
+ */
+public class MemoryPartition {
+    private final int containerMemory;
+    private final int heap;
+    private final int directMemory;
+    private final int codeCache;
+    private final int overhead;
+
+    public MemoryPartition(int containerMemory, int heap, int directMemory, int codeCache, int overhead) {
+        this.containerMemory = containerMemory;
+        this.heap = heap;
+        this.directMemory = directMemory;
+        this.codeCache = codeCache;
+        this.overhead = overhead;
+    }
+
+    public static MemoryPolicy createPolicy(Properties config) {
+        String policyClass = DrillOnYarnConfig.getString(config, "memory.policy");
+        MemoryPolicy policy;
+        try {
+            policy = (MemoryPolicy) Class.forName(policyClass).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("create memory policy " + policyClass + " error", e);
+        }
+        policy.init(config);
+        return policy;
+    }
+
+    /**
+     * 按profile的DRILL_HEAP和DRILL_MAX_DIRECT_MEMORY覆盖堆和直接内存，只配置其中一个时另一个取剩余部分，
+     * 覆盖后放不下代码缓存和余量时抛出IllegalArgumentException
+     */
+    public MemoryPartition override(DrillbitProfile profile) {
+        String heapSize = profile.getEnvironment().get("DRILL_HEAP");
+        String directSize = profile.getEnvironment().get("DRILL_MAX_DIRECT_MEMORY");
+        if (heapSize == null && directSize == null) {
+            return this;
+        }
+        int available = containerMemory - overhead - codeCache;
+        int heap = heapSize == null ? -1 : parseSize("DRILL_HEAP", heapSize);
+        int direct = directSize == null ? -1 : parseSize("DRILL_MAX_DIRECT_MEMORY", directSize);
+        heap = heap < 0 ? available - direct : heap;
+        direct = direct < 0 ? available - heap : direct;
+        if (heap <= 0 || direct <= 0 || heap + direct > available) {
+            throw new IllegalArgumentException("DRILL_HEAP and DRILL_MAX_DIRECT_MEMORY leave " + heap + "M heap and " + direct + "M direct memory, which do not fit in container memory " + containerMemory + "M with " + overhead + "M overhead and "
+                    + codeCache + "M code cache, at most " + available + "M is left for both");
+        }
+        return new MemoryPartition(containerMemory, heap, direct, codeCache, overhead);
+    }
+
+    /**
+     * 按JVM -Xmx的格式解析大小，单位为k、m、g或t，没有单位时是字节，结果向上取整到MB
+     */
+    private static int parseSize(String name, String size) {
+        String value = size.trim().toLowerCase();
+        int shift = "kmgt".indexOf(value.charAt(value.length() - 1));
+        long bytes;
+        try {
+            bytes = Long.parseLong(shift < 0 ? value : value.substring(0, value.length() - 1)) << (10 * (shift + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a size like 8G or 8192M, but is " + size);
+        }
+        return (int) ((bytes + (1 << 20) - 1) >> 20);
+    }
+
+    public int getContainerMemory() {
+        return containerMemory;
+    }
+
+    public int getHeap() {
+        return heap;
+    }
+
+    public int getDirectMemory() {
+        return directMemory;
+    }
+
+    public int getCodeCache() {
+        return codeCache;
+    }
+
+    public int getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * 堆全部提交(drillbit.sh的-Xms和-Xmx相同)、直接内存已用directUsed字节时，JVM占用的内存占Container内存的比例
+     */
+    public double getUsage(long directUsed) {
+        double used = (heap + codeCache) * 1024.0 * 1024 + directUsed;
+        return used / (containerMemory * 1024.0 * 1024);
+    }
+
+    public Map<String, String> toEnvironment() {
+        Map<String, String> environment = new LinkedHashMap<>();
+        environment.put("DRILL_HEAP", heap + "M");
+        environment.put("DRILL_MAX_DIRECT_MEMORY", directMemory + "M");
+        environment.put("DRILLBIT_CODE_CACHE_SIZE", codeCache + "M");
+        return environment;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("container", containerMemory);
+        map.put("heap", heap);
+        map.put("direct", directMemory);
+        map.put("codeCache", codeCache);
+        map.put("overhead", overhead);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "{container=" + containerMemory + "M, heap=" + heap + "M, direct=" + directMemory + "M, codeCache="
+                + codeCache + "M, overhead=" + overhead + "M}";
+    }
+}
@@ -0,0 +1,18 @@
+package chapter12;
+
+import java.util.Properties;
+
+/**
+ * drillbit内存划分策略：根据Container的内存给出堆、直接内存、代码缓存和留给JVM其他部分的余量，
+ * 四部分之和不能超过Container的内存，否则drillbit会因为超出物理内存被NM杀掉
+ *
+ * @author 徐洁阳
+ */
+public interface MemoryPolicy {
+    void init(Properties config);
+
+    /**
+     * Container内存太小、放不下策略要求的最小堆和直接内存时抛出IllegalArgumentException
+     */
+    MemoryPartition partition(int containerMemory);
+}
@@ -13,34 +13,46 @@ import java.util.Map;
  * @author 徐洁阳
  */
 public class NMCallbackHandler implements NMClientAsync.CallbackHandler {
+    private AMRMCallbackHandler amrmCallbackHandler;
+    private ContainerLauncher containerLauncher;
+
+    public void setAmrmCallbackHandler(AMRMCallbackHandler amrmCallbackHandler) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+    }
+
+    public void setContainerLauncher(ContainerLauncher containerLauncher) {
+        this.containerLauncher = containerLauncher;
+    }
 
     @Override
     public void onContainerStarted(ContainerId containerId, Map<String, ByteBuffer> allServiceResponse) {
-
+        containerLauncher.onLaunchFinished(containerId, true);
+        amrmCallbackHandler.onContainerStarted(containerId);
     }
 
     @Override
     public void onContainerStatusReceived(ContainerId containerId, ContainerStatus containerStatus) {
-
+        amrmCallbackHandler.onContainerStatusReceived(containerId, containerStatus);
     }
 
     @Override
     public void onContainerStopped(ContainerId containerId) {
-
+        EventLog.debug("container.stopped").with("containerId", containerId).log();
     }
 
     @Override
     public void onStartContainerError(ContainerId containerId, Throwable t) {
-
+        containerLauncher.onLaunchFinished(containerId, false);
+        amrmCallbackHandler.onContainerStartFailed(containerId, t);
     }
 
     @Override
     public void onGetContainerStatusError(ContainerId containerId, Throwable t) {
-
+        amrmCallbackHandler.onContainerStatusError(containerId, t);
     }
 
     @Override
     public void onStopContainerError(ContainerId containerId, Throwable t) {
-
+        amrmCallbackHandler.onStopContainerError(containerId, t);
     }
 }
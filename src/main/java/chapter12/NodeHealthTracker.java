@@ -0,0 +1,129 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据onNodesUpdated维护节点状态，节点变为不健康或下线时先为上面的drillbit申请替换，
+ * 替换的drillbit就绪后(或超过node.drain.timeout)再排空并停止它替换的旧drillbit，
+ * 状态变化次数和排空时间注册为node_transitions_total和node_drain_ms指标
+ *
+ * @author 徐洁阳
+ */
+public class NodeHealthTracker {
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final ContainerRequester containerRequester;
+    private final long drainTimeout;
+    private final ScheduledExecutorService scheduler;
+    private final AMMetrics metrics;
+    private final LatencyHistogram drainTime;
+
+    private final Map<String, NodeState> nodeStates = new ConcurrentHashMap<>();
+    private final Map<String, Long> transitions = new ConcurrentHashMap<>();
+    private final Set<String> blacklistedHosts = ConcurrentHashMap.newKeySet();
+
+    private long drainedCount;
+    private long lastDrainMillis;
+    private long maxDrainMillis;
+    private long totalDrainMillis;
+
+    public NodeHealthTracker(AMRMCallbackHandler amrmCallbackHandler, ContainerRequester containerRequester,
+                             Properties config, AMMetrics metrics) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.containerRequester = containerRequester;
+        this.drainTimeout = DrillOnYarnConfig.getLong(config, "node.drain.timeout") * 1000;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("node-health").setDaemon(true).build());
+        this.metrics = metrics;
+        this.drainTime = metrics.histogram("node_drain_ms",
+                "Time from draining a drillbit on a degraded node to stopping it");
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    amrmCallbackHandler.stopDrainedContainers(drainTimeout);
+                } catch (RuntimeException e) {
+                    EventLog.warn("node.drain.check.failed").error(e).log();
+                }
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    public void onNodesUpdated(List<NodeReport> updatedNodes) {
+        for (NodeReport nodeReport : updatedNodes) {
+            String host = nodeReport.getNodeId().getHost();
+            NodeState state = nodeReport.getNodeState();
+            NodeState previous = nodeStates.put(host, state);
+            if (previous == state) {
+                continue;
+            }
+            String transition = (previous == null ? "UNKNOWN" : previous.name()) + "->" + state.name();
+            transitions.merge(transition, 1L, Long::sum);
+            metrics.counter("node_transitions_total{transition=\"" + transition + "\"}",
+                    "Node state transitions reported by the ResourceManager").incrementAndGet();
+            EventLog.info("node.state").with("host", host).with("from", previous == null ? "UNKNOWN" : previous).with("to", state).log();
+
+            if (isDegrading(state)) {
+                if (!containerRequester.isBlacklisted(host)) {
+                    containerRequester.blacklist(host);
+                    blacklistedHosts.add(host);
+                }
+                // LOST的节点上drillbit已经不可用，由onContainersCompleted走失败替换
+                if (state != NodeState.LOST) {
+                    amrmCallbackHandler.drainHost(host);
+                }
+            } else if (state == NodeState.RUNNING && blacklistedHosts.remove(host)) {
+                containerRequester.unblacklist(host);
+            }
+        }
+    }
+
+    /**
+     * DECOMMISSIONING只在较新的YARN中存在，按名字判断以兼容当前版本
+     */
+    private static boolean isDegrading(NodeState state) {
+        return state == NodeState.UNHEALTHY || state == NodeState.DECOMMISSIONED || state == NodeState.LOST
+                || state == NodeState.REBOOTED || "DECOMMISSIONING".equals(state.name());
+    }
+
+    public synchronized void onDrained(ContainerInfo containerInfo) {
+        long drainMillis = System.currentTimeMillis() - containerInfo.getDrainStartTime();
+        drainedCount++;
+        lastDrainMillis = drainMillis;
+        maxDrainMillis = Math.max(maxDrainMillis, drainMillis);
+        totalDrainMillis += drainMillis;
+        drainTime.record(drainMillis);
+        EventLog.info("container.drained").with("containerId", containerInfo.getContainerId())
+                .with("host", containerInfo.getHost()).with("drainMillis", drainMillis).log();
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("nodeStates", new TreeMap<>(nodeStates));
+        metrics.put("transitions", new TreeMap<>(transitions));
+        metrics.put("drainedCount", drainedCount);
+        metrics.put("lastDrainMillis", lastDrainMillis);
+        metrics.put("maxDrainMillis", maxDrainMillis);
+        metrics.put("avgDrainMillis", drainedCount == 0 ? 0 : totalDrainMillis / drainedCount);
+        return metrics;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,32 @@
+package chapter12;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * drillbit的放置策略，从可用节点中选出要申请Container的节点
+ *
+ * @author 徐洁阳
+ */
+public interface PlacementPolicy {
+    void init(Properties config, Configuration hadoopConfig);
+
+    /**
+     * @param candidates 没有drillbit也不在黑名单中的运行中节点
+     * @param count      需要的节点个数
+     * @param capability 每个drillbit Container的资源
+     * @param rackLoad   每个机架上已有的drillbit个数
+     */
+    List<NodeReport> select(List<NodeReport> candidates, int count, Resource capability, Map<String, Integer> rackLoad);
+
+    /**
+     * 在后台刷新线程上调用，耗时的数据准备放在这里，select只读取准备好的结果
+     */
+    default void refresh() {
+    }
+}
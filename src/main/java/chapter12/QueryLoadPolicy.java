@@ -0,0 +1,45 @@
+package chapter12;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 默认的扩缩容策略：按每个drillbit平均的运行加排队查询数扩缩容，堆内存或直接内存使用率过高时也扩容
+ *
+ * @author 徐洁阳
+ */
+public class QueryLoadPolicy implements ScalingPolicy {
+    private double scaleUpLoad;
+    private double scaleDownLoad;
+    private double memoryHigh;
+    private int step;
+
+    @Override
+    public void init(Properties config) {
+        scaleUpLoad = DrillOnYarnConfig.getDouble(config, "autoscale.up.load");
+        scaleDownLoad = DrillOnYarnConfig.getDouble(config, "autoscale.down.load");
+        memoryHigh = DrillOnYarnConfig.getDouble(config, "autoscale.memory.high");
+        step = DrillOnYarnConfig.getInt(config, "autoscale.step");
+    }
+
+    @Override
+    public int desiredSize(int currentSize, List<DrillbitMetrics> metrics) {
+        if (metrics.isEmpty()) {
+            return currentSize;
+        }
+        double load = 0;
+        double memory = 0;
+        for (DrillbitMetrics metric : metrics) {
+            load += metric.getRunningQueries() + metric.getQueuedQueries();
+            memory = Math.max(memory, Math.max(metric.getHeapUsage(), metric.getDirectUsage()));
+        }
+        load /= metrics.size();
+        if (load > scaleUpLoad || memory > memoryHigh) {
+            return currentSize + step;
+        }
+        if (load < scaleDownLoad && memory < memoryHigh) {
+            return currentSize - step;
+        }
+        return currentSize;
+    }
+}
@@ -0,0 +1,30 @@
+package chapter12;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 随机选择节点
+ *
+ * @author 徐洁阳
+ */
+public class RandomPlacement implements PlacementPolicy {
+    @Override
+    public void init(Properties config, Configuration hadoopConfig) {
+
+    }
+
+    @Override
+    public List<NodeReport> select(List<NodeReport> candidates, int count, Resource capability, Map<String, Integer> rackLoad) {
+        List<NodeReport> nodeReports = new ArrayList<>(candidates);
+        Collections.shuffle(nodeReports);
+        return new ArrayList<>(nodeReports.subList(0, Math.min(count, nodeReports.size())));
+    }
+}
@@ -0,0 +1,44 @@
+package chapter12;
+
+import java.util.Properties;
+
+/**
+ * 默认的内存划分策略：先留出Container内存的overhead.ratio(不少于overhead.min)给线程栈、元空间和本地库，
+ * 再留出代码缓存，剩余部分按heap.ratio分给堆，堆限制在heap.min和heap.max之间，其余都给直接内存
+ *
+ * @author 徐洁阳
+ */
+public class RatioMemoryPolicy implements MemoryPolicy {
+    private double overheadRatio;
+    private int overheadMin;
+    private int codeCache;
+    private double heapRatio;
+    private int heapMin;
+    private int heapMax;
+    private int directMin;
+
+    @Override
+    public void init(Properties config) {
+        overheadRatio = DrillOnYarnConfig.getDouble(config, "memory.overhead.ratio");
+        overheadMin = DrillOnYarnConfig.getInt(config, "memory.overhead.min");
+        codeCache = DrillOnYarnConfig.getInt(config, "memory.code.cache");
+        heapRatio = DrillOnYarnConfig.getDouble(config, "memory.heap.ratio");
+        heapMin = DrillOnYarnConfig.getInt(config, "memory.heap.min");
+        heapMax = DrillOnYarnConfig.getInt(config, "memory.heap.max");
+        directMin = DrillOnYarnConfig.getInt(config, "memory.direct.min");
+    }
+
+    @Override
+    public MemoryPartition partition(int containerMemory) {
+        int overhead = Math.max(overheadMin, (int) (containerMemory * overheadRatio));
+        int available = containerMemory - overhead - codeCache;
+        int heap = Math.max(heapMin, Math.min(heapMax, (int) (available * heapRatio)));
+        int direct = available - heap;
+        if (direct < directMin) {
+            throw new IllegalArgumentException("container memory " + containerMemory + "M is too small: after "
+                    + overhead + "M overhead, " + codeCache + "M code cache and " + heap + "M heap only "
+                    + Math.max(0, direct) + "M is left for direct memory, at least " + directMin + "M is required");
+        }
+        return new MemoryPartition(containerMemory, heap, direct, codeCache, overhead);
+    }
+}
@@ -0,0 +1,118 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并发探测已启动但还没有就绪的drillbit：用户端口能建立连接并且HTTP端口有响应才算就绪，
+ * 每次探测都有连接和读取超时，启动后超过probe.ready.timeout秒还没有就绪的drillbit交给AMRMCallbackHandler替换
+ *
+ * @author 徐洁阳
+ */
+public class ReadinessProbe {
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final int userPort;
+    private final int httpPort;
+    private final int timeout;
+    private final long interval;
+    private final long readyTimeout;
+    private final ExecutorService probeExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final Set<ContainerId> probing = ConcurrentHashMap.newKeySet();
+
+    public ReadinessProbe(AMRMCallbackHandler amrmCallbackHandler, Properties config) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.userPort = DrillOnYarnConfig.getInt(config, "drill.user.port");
+        this.httpPort = DrillOnYarnConfig.getInt(config, "drill.http.port");
+        this.timeout = DrillOnYarnConfig.getInt(config, "probe.timeout");
+        this.interval = DrillOnYarnConfig.getLong(config, "probe.interval");
+        this.readyTimeout = DrillOnYarnConfig.getLong(config, "probe.ready.timeout") * 1000;
+        this.probeExecutor = Executors.newFixedThreadPool(DrillOnYarnConfig.getInt(config, "probe.threads"),
+                new ThreadFactoryBuilder().setNameFormat("readiness-probe-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("readiness-probe").setDaemon(true).build());
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probeAll();
+                } catch (RuntimeException e) {
+                    EventLog.warn("probe.failed").error(e).log();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 每个drillbit同时只有一个探测在执行，上一次探测还没有返回时跳过
+     */
+    private void probeAll() {
+        long now = System.currentTimeMillis();
+        for (final ContainerInfo containerInfo : amrmCallbackHandler.getStartedContainers()) {
+            if (now - containerInfo.getStartTime() > readyTimeout) {
+                amrmCallbackHandler.onContainerNotReady(containerInfo.getContainerId(), readyTimeout);
+                continue;
+            }
+            if (!probing.add(containerInfo.getContainerId())) {
+                continue;
+            }
+            probeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (isReady(containerInfo.getHost())) {
+                            amrmCallbackHandler.onContainerReady(containerInfo.getContainerId());
+                        }
+                    } finally {
+                        probing.remove(containerInfo.getContainerId());
+                    }
+                }
+            });
+        }
+    }
+
+    public boolean isReady(String host) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, userPort), timeout);
+        } catch (IOException e) {
+            EventLog.debug("probe.user.port").with("host", host).with("port", userPort).with("error", e.getMessage()).log();
+            return false;
+        }
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://" + host + ":" + httpPort + "/").openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setInstanceFollowRedirects(false);
+            try {
+                // 开启认证时web服务返回重定向或401，同样说明drillbit已经启动
+                return connection.getResponseCode() < 500;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            EventLog.debug("probe.http.port").with("host", host).with("port", httpPort).with("error", e.getMessage()).log();
+            return false;
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        probeExecutor.shutdownNow();
+    }
+}
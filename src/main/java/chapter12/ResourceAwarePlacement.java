@@ -0,0 +1,152 @@
+package chapter12;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 按节点的空闲内存和cpu、机架分散程度以及热点数据集的HDFS块本地性给节点打分，贪心地选出得分最高的节点，
+ * 放不下一个drillbit Container的节点直接排除
+ *
+ * @author 徐洁阳
+ */
+public class ResourceAwarePlacement implements PlacementPolicy {
+    private double memoryWeight;
+    private double vCoresWeight;
+    private double rackWeight;
+    private double localityWeight;
+    private double unhealthyPenalty;
+    private List<Path> hotPaths;
+    private long localityRefresh;
+    private FileSystem fileSystem;
+
+    private volatile Map<String, Double> locality = Collections.emptyMap();
+    private long localityTime;
+
+    @Override
+    public synchronized void init(Properties config, Configuration hadoopConfig) {
+        memoryWeight = DrillOnYarnConfig.getDouble(config, "placement.weight.memory");
+        vCoresWeight = DrillOnYarnConfig.getDouble(config, "placement.weight.vCores");
+        rackWeight = DrillOnYarnConfig.getDouble(config, "placement.weight.rack");
+        localityWeight = DrillOnYarnConfig.getDouble(config, "placement.weight.locality");
+        unhealthyPenalty = DrillOnYarnConfig.getDouble(config, "placement.unhealthy.penalty");
+        localityRefresh = DrillOnYarnConfig.getLong(config, "placement.locality.refresh") * 1000;
+        localityTime = 0;
+        hotPaths = new ArrayList<>();
+        for (String path : StringUtils.split(DrillOnYarnConfig.getString(config, "placement.hot.paths"), ',')) {
+            if (StringUtils.isNotBlank(path)) {
+                hotPaths.add(new Path(path.trim()));
+            }
+        }
+        if (!hotPaths.isEmpty()) {
+            try {
+                fileSystem = FileSystem.get(hadoopConfig);
+            } catch (IOException e) {
+                throw new RuntimeException("init placement file system error", e);
+            }
+        }
+    }
+
+    @Override
+    public List<NodeReport> select(List<NodeReport> candidates, int count, Resource capability, Map<String, Integer> rackLoad) {
+        Map<String, Double> hostLocality = locality;
+        Map<String, Integer> racks = new HashMap<>(rackLoad);
+        List<NodeReport> remaining = new ArrayList<>();
+        for (NodeReport nodeReport : candidates) {
+            if (freeMemory(nodeReport) >= capability.getMemory() && freeVCores(nodeReport) >= capability.getVirtualCores()) {
+                remaining.add(nodeReport);
+            }
+        }
+
+        List<NodeReport> selected = new ArrayList<>();
+        while (selected.size() < count && !remaining.isEmpty()) {
+            NodeReport best = null;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (NodeReport nodeReport : remaining) {
+                double score = score(nodeReport, hostLocality, racks);
+                if (score > bestScore) {
+                    best = nodeReport;
+                    bestScore = score;
+                }
+            }
+            remaining.remove(best);
+            selected.add(best);
+            racks.merge(best.getRackName(), 1, Integer::sum);
+            EventLog.debug("placement.selected").with("host", best.getNodeId().getHost())
+                    .with("score", bestScore).log();
+        }
+        return selected;
+    }
+
+    private double score(NodeReport nodeReport, Map<String, Double> hostLocality, Map<String, Integer> racks) {
+        Resource capability = nodeReport.getCapability();
+        double score = memoryWeight * freeMemory(nodeReport) / Math.max(1, capability.getMemory())
+                + vCoresWeight * freeVCores(nodeReport) / Math.max(1, capability.getVirtualCores())
+                - rackWeight * racks.getOrDefault(nodeReport.getRackName(), 0)
+                + localityWeight * hostLocality.getOrDefault(nodeReport.getNodeId().getHost(), 0.0);
+        if (StringUtils.isNotBlank(nodeReport.getHealthReport())) {
+            score -= unhealthyPenalty;
+        }
+        return score;
+    }
+
+    private static int freeMemory(NodeReport nodeReport) {
+        Resource used = nodeReport.getUsed();
+        return nodeReport.getCapability().getMemory() - (used == null ? 0 : used.getMemory());
+    }
+
+    private static int freeVCores(NodeReport nodeReport) {
+        Resource used = nodeReport.getUsed();
+        return nodeReport.getCapability().getVirtualCores() - (used == null ? 0 : used.getVirtualCores());
+    }
+
+    /**
+     * 重新统计每个节点上热点数据集的块字节数占最多的节点的比例，距上次统计不到placement.locality.refresh时跳过
+     */
+    @Override
+    public synchronized void refresh() {
+        if (hotPaths.isEmpty() || System.currentTimeMillis() - localityTime < localityRefresh) {
+            return;
+        }
+        Map<String, Long> bytes = new HashMap<>();
+        try {
+            for (Path hotPath : hotPaths) {
+                RemoteIterator<LocatedFileStatus> files = fileSystem.listFiles(hotPath, true);
+                while (files.hasNext()) {
+                    for (BlockLocation block : files.next().getBlockLocations()) {
+                        for (String host : block.getHosts()) {
+                            bytes.merge(host, block.getLength(), Long::sum);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            EventLog.warn("placement.locality.failed").error(e).log();
+            return;
+        }
+        long max = 1;
+        for (long value : bytes.values()) {
+            max = Math.max(max, value);
+        }
+        Map<String, Double> normalized = new HashMap<>();
+        for (Map.Entry<String, Long> entry : bytes.entrySet()) {
+            normalized.put(entry.getKey(), (double) entry.getValue() / max);
+        }
+        locality = normalized;
+        localityTime = System.currentTimeMillis();
+    }
+}
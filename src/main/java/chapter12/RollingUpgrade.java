@@ -0,0 +1,285 @@
+package chapter12;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不停机滚动升级Drill：每批把batch个旧版本drillbit标记为superseded并按新版本申请替换，
+ * 新版本drillbit就绪并稳定运行ready.wait秒后才排空并停止旧的，同时超出目标个数的Container不超过surge个，
+ * 处理查询的drillbit不少于min.available个；新版本drillbit失败次数达到上限或一批超时后切换回旧版本，按同样的方式回滚
+ *
+ * @author 徐洁阳
+ */
+public class RollingUpgrade {
+    private enum Phase {
+        IDLE, UPGRADING, ROLLING_BACK, FINISHED, ROLLED_BACK, FAILED
+    }
+
+    private final AMRMCallbackHandler amrmCallbackHandler;
+    private final DrillbitLaunchTemplate launchTemplate;
+    private final Properties config;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile Phase phase = Phase.IDLE;
+    private volatile String toVersion;
+    private String fromVersion;
+    private int batchSize;
+    private int surge;
+    private int minAvailable;
+    private long readyWait;
+    private long batchTimeout;
+    private int maxFailures;
+    private int batches;
+    private int stopped;
+    private long startTime;
+    private long batchStartTime;
+    private long finishTime;
+    private String reason;
+    private ScheduledFuture<?> task;
+
+    public RollingUpgrade(AMRMCallbackHandler amrmCallbackHandler, DrillbitLaunchTemplate launchTemplate, Properties config) {
+        this.amrmCallbackHandler = amrmCallbackHandler;
+        this.launchTemplate = launchTemplate;
+        this.config = config;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rolling-upgrade").setDaemon(true).build());
+    }
+
+    /**
+     * 开始升级到params中的drill.path、drill.archive.name和drill.upload.path，
+     * batch、surge和min.available可以覆盖配置中的upgrade.batch.size、upgrade.surge和upgrade.min.available
+     */
+    public synchronized Map<String, Object> start(Map<String, String> params) {
+        if (isActive()) {
+            throw new IllegalArgumentException("upgrade from " + fromVersion + " to " + toVersion + " is in progress");
+        }
+        Map<String, String> drill = new LinkedHashMap<>();
+        for (String key : new String[] {"drill.path", "drill.archive.name", "drill.upload.path"}) {
+            if (StringUtils.isBlank(params.get(key))) {
+                throw new IllegalArgumentException(key + " is required");
+            }
+            drill.put(key, params.get(key));
+        }
+        int batchSize = params.containsKey("batch")
+                ? Integer.parseInt(params.get("batch")) : DrillOnYarnConfig.getInt(config, "upgrade.batch.size");
+        int surge = params.containsKey("surge")
+                ? Integer.parseInt(params.get("surge")) : DrillOnYarnConfig.getInt(config, "upgrade.surge");
+        String minAvailable = params.containsKey("min.available")
+                ? params.get("min.available") : DrillOnYarnConfig.getString(config, "upgrade.min.available");
+        if (batchSize < 1 || surge < 0) {
+            throw new IllegalArgumentException("batch must be positive and surge must not be negative");
+        }
+        this.batchSize = batchSize;
+        this.surge = surge;
+        this.minAvailable = StringUtils.isBlank(minAvailable) ? -1 : Integer.parseInt(minAvailable);
+        int target = amrmCallbackHandler.getTargetSize();
+        if (surge == 0 && floor(target) >= target) {
+            throw new IllegalArgumentException("surge is 0 and min.available is not less than the target " + target
+                    + ", no drillbit can be replaced");
+        }
+        readyWait = DrillOnYarnConfig.getLong(config, "upgrade.ready.wait") * 1000;
+        batchTimeout = DrillOnYarnConfig.getLong(config, "upgrade.batch.timeout") * 1000;
+        maxFailures = DrillOnYarnConfig.getInt(config, "upgrade.max.failures");
+
+        fromVersion = launchTemplate.getVersion();
+        toVersion = launchTemplate.upgrade(drill);
+        failures.set(0);
+        batches = 0;
+        stopped = 0;
+        startTime = System.currentTimeMillis();
+        batchStartTime = 0;
+        finishTime = 0;
+        reason = null;
+        phase = Phase.UPGRADING;
+        EventLog.info("upgrade.started").with("from", fromVersion).with("to", toVersion).with("batch", batchSize)
+                .with("surge", surge).with("minAvailable", floor(target)).log();
+        amrmCallbackHandler.releaseStandby(toVersion);
+        if (task == null) {
+            task = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check();
+                    } catch (RuntimeException e) {
+                        EventLog.warn("upgrade.check.failed").error(e).log();
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+        return getProgress();
+    }
+
+    private boolean isActive() {
+        return phase == Phase.UPGRADING || phase == Phase.ROLLING_BACK;
+    }
+
+    private int floor(int target) {
+        return minAvailable < 0 ? target : Math.min(minAvailable, target);
+    }
+
+    /**
+     * 先停止可以停止的superseded drillbit，这一批全部停止并且新版本都就绪后再开始下一批
+     */
+    synchronized void check() {
+        if (!isActive()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (failures.get() >= maxFailures) {
+            fail(failures.get() + " drillbits of " + toVersion + " failed");
+            return;
+        }
+        int target = amrmCallbackHandler.getTargetSize();
+        int floor = floor(target);
+        List<ContainerInfo> superseded = new ArrayList<>();
+        List<ContainerInfo> old = new ArrayList<>();
+        int allocated = 0;
+        int active = 0;
+        int ready = 0;
+        int serving = 0;
+        for (ContainerInfo containerInfo : amrmCallbackHandler.getContainers()) {
+            if (containerInfo.isStandby()) {
+                continue;
+            }
+            allocated++;
+            if (containerInfo.isSuperseded() || containerInfo.isDraining()) {
+                if (containerInfo.isSuperseded()) {
+                    superseded.add(containerInfo);
+                }
+                serving += containerInfo.isReady() ? 1 : 0;
+                continue;
+            }
+            active++;
+            boolean upgraded = toVersion.equals(containerInfo.getVersion());
+            if (!upgraded) {
+                old.add(containerInfo);
+            }
+            if (containerInfo.isReady() && (!upgraded || now - containerInfo.getReadyTime() >= readyWait)) {
+                ready++;
+            }
+        }
+        serving += ready;
+
+        // 替换已经就绪时停止superseded的drillbit；Container超出目标个数surge个以上时，在不低于min.available的前提下先停止。
+        // 正在排空的drillbit不再处理新查询，但仍然占用Container，计入超出的个数
+        Comparator<ContainerInfo> order = Comparator.comparing(ContainerInfo::isReady)
+                .thenComparingLong(ContainerInfo::getAllocateTime);
+        superseded.sort(order);
+        int quiescing = amrmCallbackHandler.getQuiescingCount();
+        int excess = allocated + quiescing + amrmCallbackHandler.getPendingRequests() - target - surge;
+        Iterator<ContainerInfo> iterator = superseded.iterator();
+        while (iterator.hasNext()) {
+            ContainerInfo containerInfo = iterator.next();
+            int remaining = serving - (containerInfo.isReady() ? 1 : 0);
+            if (remaining < Math.max(floor, target) && (excess <= 0 || remaining < floor)) {
+                break;
+            }
+            amrmCallbackHandler.stopSuperseded(containerInfo);
+            iterator.remove();
+            serving = remaining;
+            excess--;
+            stopped++;
+        }
+
+        // 上一批的旧drillbit排空并停止后才开始下一批
+        if (!superseded.isEmpty() || quiescing > 0 || ready < active || amrmCallbackHandler.getPendingRequests() > 0) {
+            if (batchStartTime > 0 && now - batchStartTime > batchTimeout) {
+                fail("batch " + batches + " not finished in " + batchTimeout / 1000 + "s");
+            }
+            return;
+        }
+        if (old.isEmpty()) {
+            finish();
+            return;
+        }
+        if (serving < floor) {
+            return;
+        }
+        old.sort(order);
+        List<ContainerInfo> batch = new ArrayList<>(old.subList(0, Math.min(batchSize, old.size())));
+        batches++;
+        batchStartTime = now;
+        EventLog.info("upgrade.batch").with("batch", batches).with("to", toVersion).with("containers", batch.size())
+                .with("remaining", old.size() - batch.size()).with("serving", serving).log();
+        amrmCallbackHandler.supersede(batch);
+        // 替换请求已经发出，立即停止超出surge的旧drillbit，不等下一次检查
+        check();
+    }
+
+    /**
+     * 新版本drillbit异常退出或启动失败，在AMRM回调线程中调用，只计数，由检查线程处理
+     */
+    public void onContainerLost(ContainerInfo containerInfo) {
+        if (isActive() && toVersion.equals(containerInfo.getVersion())) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private void fail(String reason) {
+        this.reason = reason;
+        if (phase == Phase.UPGRADING) {
+            EventLog.warn("upgrade.rollback").with("from", toVersion).with("to", fromVersion).with("reason", reason).log();
+            String failedVersion = toVersion;
+            toVersion = launchTemplate.rollback();
+            fromVersion = failedVersion;
+            phase = Phase.ROLLING_BACK;
+            failures.set(0);
+            batchStartTime = 0;
+            amrmCallbackHandler.restoreSuperseded();
+            amrmCallbackHandler.releaseStandby(toVersion);
+            return;
+        }
+        // 回滚也失败时保留现有的drillbit，不再替换
+        phase = Phase.FAILED;
+        finishTime = System.currentTimeMillis();
+        amrmCallbackHandler.restoreSuperseded();
+        EventLog.error("upgrade.failed").with("version", toVersion).with("reason", reason).log();
+    }
+
+    private void finish() {
+        phase = phase == Phase.UPGRADING ? Phase.FINISHED : Phase.ROLLED_BACK;
+        finishTime = System.currentTimeMillis();
+        EventLog.info("upgrade.finished").with("phase", phase.name().toLowerCase()).with("version", toVersion)
+                .with("batches", batches).with("stopped", stopped).with("millis", finishTime - startTime).log();
+    }
+
+    public synchronized Map<String, Object> getProgress() {
+        Map<String, Integer> versions = new TreeMap<>();
+        for (ContainerInfo containerInfo : amrmCallbackHandler.getContainers()) {
+            if (!containerInfo.isStandby()) {
+                versions.merge(String.valueOf(containerInfo.getVersion()), 1, Integer::sum);
+            }
+        }
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("phase", phase.name().toLowerCase());
+        progress.put("from", fromVersion);
+        progress.put("to", toVersion);
+        progress.put("versions", versions);
+        progress.put("batches", batches);
+        progress.put("stopped", stopped);
+        progress.put("failures", failures.get());
+        progress.put("startTime", startTime);
+        progress.put("finishTime", finishTime);
+        progress.put("reason", reason);
+        return progress;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,16 @@
+package chapter12;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 自动扩缩容策略，根据所有drillbit的采样结果给出期望的drillbit个数，
+ * 最小最大个数、滞后和冷却时间由Autoscaler统一处理
+ *
+ * @author 徐洁阳
+ */
+public interface ScalingPolicy {
+    void init(Properties config);
+
+    int desiredSize(int currentSize, List<DrillbitMetrics> metrics);
+}
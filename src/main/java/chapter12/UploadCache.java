@@ -0,0 +1,138 @@
+package chapter12;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 按内容摘要上传文件到HDFS：相同内容只上传一次，HDFS上的路径为 uploadDir/文件名/摘要/文件名，
+ * 文件的修改时间保持不变，NodeManager的本地化缓存可以在多次启动之间复用
+ *
+ * @author 徐洁阳
+ */
+public class UploadCache {
+    private static final String DIGEST_SUFFIX = ".sha256";
+    private static final String COPYING_SUFFIX = "._COPYING_";
+
+    private final FileSystem fileSystem;
+    private final Configuration config;
+    private final Path uploadDir;
+    private final int retain;
+
+    public UploadCache(FileSystem fileSystem, Configuration config, String uploadDir, int retain) {
+        this.fileSystem = fileSystem;
+        this.config = config;
+        this.uploadDir = new Path(uploadDir);
+        // 至少保留两个版本：滚动升级期间运行中的旧版本和新上传的版本都还在被Container引用
+        this.retain = Math.max(2, retain);
+    }
+
+    public FileStatus upload(File local) throws IOException {
+        String digest = digest(local);
+        Path versionDir = new Path(new Path(uploadDir, local.getName()), digest);
+        Path target = new Path(versionDir, local.getName());
+        if (isUploaded(target, local)) {
+            System.out.println(local + " digest " + digest + " already uploaded at " + target + ", skip upload");
+            // 只更新版本目录的时间用于清理排序，文件本身的修改时间不能变，否则NodeManager会重新本地化
+            fileSystem.setTimes(versionDir, System.currentTimeMillis(), -1);
+        } else {
+            // 多个客户端可能同时上传同一个文件，各自写自己的临时文件，重命名失败时如果目标已经由别人上传完成也算成功
+            Path copying = new Path(versionDir, local.getName() + "." + UUID.randomUUID() + COPYING_SUFFIX);
+            FileUtil.copy(local, fileSystem, copying, false, config);
+            if (fileSystem.rename(copying, target)) {
+                System.out.println("uploaded " + local + " digest " + digest + " to " + target);
+            } else if (isUploaded(target, local)) {
+                fileSystem.delete(copying, false);
+                System.out.println(local + " digest " + digest + " uploaded concurrently to " + target);
+            } else {
+                // 目标是长度不对的残留文件时删除后再重命名一次
+                fileSystem.delete(target, false);
+                if (!fileSystem.rename(copying, target)) {
+                    fileSystem.delete(copying, false);
+                    if (!isUploaded(target, local)) {
+                        throw new IOException("rename " + copying + " to " + target + " failed");
+                    }
+                }
+                System.out.println("uploaded " + local + " digest " + digest + " to " + target);
+            }
+        }
+        cleanup(versionDir.getParent(), versionDir);
+        return fileSystem.getFileStatus(target);
+    }
+
+    private boolean isUploaded(Path target, File local) throws IOException {
+        return fileSystem.exists(target) && fileSystem.getFileStatus(target).getLen() == local.length();
+    }
+
+    private void cleanup(Path archiveDir, Path current) throws IOException {
+        FileStatus[] versions = fileSystem.listStatus(archiveDir);
+        if (versions.length <= retain) {
+            return;
+        }
+        List<FileStatus> sorted = new ArrayList<>(Arrays.asList(versions));
+        sorted.sort(Comparator.comparingLong(FileStatus::getModificationTime).reversed());
+        for (FileStatus version : sorted.subList(retain, sorted.size())) {
+            Path path = version.getPath();
+            if (path.getName().equals(current.getName())) {
+                continue;
+            }
+            System.out.println("delete expired upload version " + path);
+            fileSystem.delete(path, true);
+        }
+    }
+
+    /**
+     * 计算文件的SHA-256摘要，摘要和文件的大小、修改时间一起缓存在同目录的.sha256文件中，文件未变化时直接复用
+     */
+    public static String digest(File local) throws IOException {
+        File digestFile = new File(local.getPath() + DIGEST_SUFFIX);
+        String stamp = local.length() + " " + local.lastModified();
+        if (digestFile.isFile()) {
+            String[] cached = FileUtils.readFileToString(digestFile, StandardCharsets.UTF_8).trim().split(" ", 2);
+            if (cached.length == 2 && cached[1].equals(stamp)) {
+                return cached[0];
+            }
+        }
+        String digest = sha256(local);
+        try {
+            FileUtils.writeStringToFile(digestFile, digest + " " + stamp, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("can not write digest cache " + digestFile + ", " + e.getMessage());
+        }
+        return digest;
+    }
+
+    private static String sha256(File local) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(local)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+        return DatatypeConverter.printHexBinary(messageDigest.digest()).toLowerCase();
+    }
+}
@@ -2,6 +2,14 @@ package chapter12;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.hadoop.yarn.api.records.*;
 import org.apache.hadoop.yarn.client.api.YarnClient;
@@ -13,7 +21,17 @@ import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
 
 /**
@@ -22,6 +40,11 @@ import java.util.*;
  * @author 徐洁阳
  */
 public class YarnUtil {
+    /**
+     * AM HTTP服务密钥在AM Container凭据中的别名，以及在应用目录下供之后的客户端命令读取的文件名
+     */
+    public static final String AM_SECRET_ALIAS = "drill.am.secret";
+    public static final String AM_SECRET_FILE_NAME = "am.secret";
     public static List<String> buildCommand(String command) {
         List<String> commands = new ArrayList<>();
         commands.add(ApplicationConstants.Environment.SHELL.$$());
@@ -39,14 +62,19 @@ public class YarnUtil {
     public static Map<String, LocalResource> buildResource(FileStatus fileStatus, LocalResourceType type,
                                                            LocalResourceVisibility visibility) {
         Map<String, LocalResource> localResources = new LinkedHashMap<>();
+        localResources.put(fileStatus.getPath().getName(), buildLocalResource(fileStatus, type, visibility));
+        return localResources;
+    }
+
+    public static LocalResource buildLocalResource(FileStatus fileStatus, LocalResourceType type,
+                                                   LocalResourceVisibility visibility) {
         LocalResource localResource = Records.newRecord(LocalResource.class);
         localResource.setResource(ConverterUtils.getYarnUrlFromPath(fileStatus.getPath()));
         localResource.setSize(fileStatus.getLen());
         localResource.setTimestamp(fileStatus.getModificationTime());
         localResource.setType(type);
         localResource.setVisibility(visibility);
-        localResources.put(fileStatus.getPath().getName(), localResource);
-        return localResources;
+        return localResource;
     }
 
     public static Map<String, String> buildCommonEnvironment(Configuration config) {
@@ -62,6 +90,104 @@ public class YarnUtil {
         return environment;
     }
 
+    /**
+     * 把应用配置写到HDFS上，作为AM Container的本地资源，不受环境变量长度的限制
+     */
+    public static FileStatus writeConfig(FileSystem fileSystem, Path path, Properties config) {
+        try {
+            try (Writer writer = new OutputStreamWriter(fileSystem.create(path, true), StandardCharsets.UTF_8)) {
+                config.store(writer, "Drill on YARN");
+            }
+            return fileSystem.getFileStatus(path);
+        } catch (IOException e) {
+            throw new RuntimeException("write config to " + path + " error", e);
+        }
+    }
+
+    /**
+     * 把classpath中chapter12包下的资源文件原样写到HDFS上
+     */
+    public static FileStatus writeResource(FileSystem fileSystem, Path path, String resource) {
+        try (InputStream input = YarnUtil.class.getResourceAsStream(resource)) {
+            if (input == null) {
+                throw new IllegalStateException("resource " + resource + " not found");
+            }
+            try (OutputStream output = fileSystem.create(path, true)) {
+                IOUtils.copyBytes(input, output, 4096);
+            }
+            return fileSystem.getFileStatus(path);
+        } catch (IOException e) {
+            throw new RuntimeException("write " + resource + " to " + path + " error", e);
+        }
+    }
+
+    public static String newSecret() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder secret = new StringBuilder();
+        for (byte b : bytes) {
+            secret.append(String.format("%02x", b));
+        }
+        return secret.toString();
+    }
+
+    /**
+     * 密钥文件只有提交应用的用户可读，之后的resize、upgrade和stop等命令以同一用户读取
+     */
+    public static void writeSecret(FileSystem fileSystem, Path path, String secret) {
+        try (OutputStream output = fileSystem.create(path, new FsPermission((short) 0600), true, 4096,
+                fileSystem.getDefaultReplication(path), fileSystem.getDefaultBlockSize(path), null)) {
+            output.write(secret.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("write am secret to " + path + " error", e);
+        }
+    }
+
+    public static String readSecret(FileSystem fileSystem, Path path) {
+        try (InputStream input = fileSystem.open(path)) {
+            return org.apache.commons.io.IOUtils.toString(input, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new RuntimeException("read am secret " + path + " error", e);
+        }
+    }
+
+    /**
+     * 把密钥放进AM Container的凭据，AM重启后的attempt也能拿到
+     */
+    public static ByteBuffer secretTokens(String secret) {
+        Credentials credentials = new Credentials();
+        credentials.addSecretKey(new Text(AM_SECRET_ALIAS), secret.getBytes(StandardCharsets.UTF_8));
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        try {
+            credentials.writeTokenStorageToStream(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException("write am credentials error", e);
+        }
+        return ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength());
+    }
+
+    /**
+     * AM从自己的凭据中读取密钥，没有时返回null
+     */
+    public static String readSecretFromCredentials() {
+        try {
+            byte[] secret = UserGroupInformation.getCurrentUser().getCredentials().getSecretKey(new Text(AM_SECRET_ALIAS));
+            return secret == null ? null : new String(secret, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("read am credentials error", e);
+        }
+    }
+
+    public static Properties readConfig(File file) {
+        Properties config = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            config.load(reader);
+        } catch (IOException e) {
+            throw new RuntimeException("read config " + file + " error", e);
+        }
+        return config;
+    }
+
     public static YarnClient initYarnClient(Configuration config) {
         YarnClient client = YarnClient.createYarnClient();
         client.init(config);
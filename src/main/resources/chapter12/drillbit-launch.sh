@@ -0,0 +1,52 @@
+#!/bin/bash
+# drillbit Container的启动脚本，由客户端上传、AM作为本地资源下发，用法：drillbit-launch.sh <DRILL_HOME>
+# 按NodeManager为这个Container分配的LOCAL_DIRS生成drill-override.conf：spill目录分散到每块本地磁盘上，
+# 临时目录按Container ID选择其中一块；目录都在每块磁盘上这个Container自己的目录下，Container结束时由NM清理。
+# 生成的配置写在原有drill-override.conf的前面，原配置中显式设置的spill和临时目录仍然优先
+
+DRILL_HOME_DIR=$1
+SOURCE_CONF=${DRILL_CONF_DIR:-$DRILL_HOME_DIR/conf}
+CONF=$PWD/drill-conf
+
+mkdir -p "$CONF"
+if [ -d "$SOURCE_CONF" ]; then
+  cp -r "$SOURCE_CONF"/. "$CONF"/
+fi
+
+DIRS=()
+IFS=, read -ra LOCAL_DIR_LIST <<< "$LOCAL_DIRS"
+for dir in "${LOCAL_DIR_LIST[@]}"; do
+  # 创建失败的磁盘(只读、已满)直接跳过
+  if mkdir -p "$dir/$CONTAINER_ID/drill/spill" "$dir/$CONTAINER_ID/drill/tmp" 2>/dev/null; then
+    DIRS+=("$dir/$CONTAINER_ID/drill")
+  else
+    echo "skip local dir $dir" >&2
+  fi
+done
+
+if [ ${#DIRS[@]} -gt 0 ]; then
+  SPILL=""
+  for dir in "${DIRS[@]}"; do
+    SPILL="$SPILL${SPILL:+, }\"$dir/spill\""
+  done
+  # 同一节点上的多个drillbit把临时目录放在不同的磁盘上
+  INDEX=$(( $(echo "$CONTAINER_ID" | cksum | cut -d' ' -f1) % ${#DIRS[@]} ))
+  TMP=${DIRS[$INDEX]}/tmp
+
+  {
+    echo "# generated by drillbit-launch.sh from LOCAL_DIRS=$LOCAL_DIRS"
+    echo "drill.tmp-dir: \"$TMP\""
+    echo "drill.exec.tmp.directory: \"$TMP\""
+    echo "drill.exec.spill.directories: [$SPILL]"
+    echo "drill.exec.sort.external.spill.directories: [$SPILL]"
+    echo "drill.exec.hashagg.spill.directories: [$SPILL]"
+    if [ -f "$SOURCE_CONF/drill-override.conf" ]; then
+      cat "$SOURCE_CONF/drill-override.conf"
+    fi
+  } > "$CONF/drill-override.conf"
+  export DRILLBIT_JAVA_OPTS="$DRILLBIT_JAVA_OPTS -Djava.io.tmpdir=$TMP"
+  echo "drill spill dirs: $SPILL, tmp dir: $TMP"
+fi
+
+export DRILL_CONF_DIR=$CONF
+exec "$DRILL_HOME_DIR/bin/drillbit.sh" run
@@ -0,0 +1,330 @@
+package chapter12;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+import org.apache.hadoop.yarn.util.RackResolver;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用本地的桩HTTP服务代替drillbit的/status/metrics接口，驱动真实的Autoscaler和QueryLoadPolicy：
+ * 扩容、缩容、阈值之间和方向反复时不调整、冷却时间、上下限，以及等待自己的调整请求最多resize.timeout。
+ * AMRMClient使用未启动的真实实现，分配和启动Container由测试直接回调handler
+ *
+ * @author 徐洁阳
+ */
+public class AutoscalerTest {
+    private static final Resource CAPABILITY = Resource.newInstance(4096, 2);
+    private static final Priority PRIORITY = Priority.newInstance(0);
+    private static final DrillbitProfile PROFILE = new DrillbitProfile(DrillbitProfile.DEFAULT_NAME, CAPABILITY, PRIORITY,
+            0, 0, null, Collections.<String>emptySet(), Collections.<String, String>emptyMap());
+    private static final ApplicationAttemptId ATTEMPT_ID =
+            ApplicationAttemptId.newInstance(ApplicationId.newInstance(System.currentTimeMillis(), 1), 1);
+
+    /**
+     * 所有drillbit共用一个桩服务，运行查询数由load决定
+     */
+    private static final AtomicLong load = new AtomicLong();
+    private static HttpServer server;
+    private static long nextContainerId;
+
+    private Properties config;
+    private Cluster cluster;
+    private Autoscaler autoscaler;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        RackResolver.init(new Configuration());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/status/metrics", exchange -> {
+            byte[] body = ("{\"gauges\":{\"drill.queries.running\":{\"value\":" + load.get() + "}}}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @Before
+    public void setUp() {
+        config = new Properties();
+        config.setProperty("autoscale.min", "1");
+        config.setProperty("autoscale.max", "10");
+        config.setProperty("autoscale.stable.samples", "2");
+        config.setProperty("autoscale.up.cooldown", "0");
+        config.setProperty("autoscale.down.cooldown", "0");
+        config.setProperty("autoscale.resize.timeout", "0");
+        config.setProperty("autoscale.up.load", "8");
+        config.setProperty("autoscale.down.load", "1");
+        cluster = new Cluster();
+    }
+
+    @After
+    public void tearDown() {
+        if (autoscaler != null) {
+            autoscaler.stop();
+        }
+    }
+
+    private Autoscaler newAutoscaler() {
+        DrillbitMetricsSampler sampler = new DrillbitMetricsSampler(
+                "http://127.0.0.1:%2$d/status/metrics?host=%1$s", server.getAddress().getPort(), 2000);
+        autoscaler = new Autoscaler(cluster.handler, sampler, Autoscaler.createPolicy(config), config);
+        return autoscaler;
+    }
+
+    @Test
+    public void scaleUpAfterStableSamples() {
+        cluster.start(2);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(20);
+        assertEquals(2, autoscaler.evaluate());
+        assertEquals(3, autoscaler.evaluate());
+        assertEquals(3, cluster.handler.getTargetSize());
+    }
+
+    @Test
+    public void scaleDownAfterStableSamples() {
+        cluster.start(3);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(0);
+        assertEquals(3, autoscaler.evaluate());
+        assertEquals(2, autoscaler.evaluate());
+        assertEquals(2, cluster.handler.getTargetSize());
+    }
+
+    @Test
+    public void holdBetweenThresholdsAndOnDirectionChange() {
+        cluster.start(2);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2, autoscaler.evaluate());
+        }
+        // 方向反复时每次都重新计数，达不到stable.samples
+        for (long sample : new long[] {20, 0, 20, 0, 20}) {
+            load.set(sample);
+            assertEquals(2, autoscaler.evaluate());
+        }
+    }
+
+    @Test
+    public void cooldownPerDirection() {
+        config.setProperty("autoscale.up.cooldown", "60");
+        config.setProperty("autoscale.down.cooldown", "60");
+        cluster.start(2);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(20);
+        autoscaler.evaluate();
+        assertEquals(3, autoscaler.evaluate());
+        cluster.allocateAll();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3, autoscaler.evaluate());
+        }
+        load.set(0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3, autoscaler.evaluate());
+        }
+
+        // 冷却期间缩容的决策一直稳定，冷却结束后立即缩容
+        config.setProperty("autoscale.down.cooldown", "0");
+        autoscaler.reconfigure(config);
+        assertEquals(2, autoscaler.evaluate());
+    }
+
+    @Test
+    public void clampToMinAndMax() {
+        config.setProperty("autoscale.min", "2");
+        config.setProperty("autoscale.max", "3");
+        cluster.start(3);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(20);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3, autoscaler.evaluate());
+        }
+        load.set(0);
+        autoscaler.evaluate();
+        assertEquals(2, autoscaler.evaluate());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, autoscaler.evaluate());
+        }
+    }
+
+    @Test
+    public void waitForOwnRequestsAtMostResizeTimeout() throws InterruptedException {
+        config.setProperty("autoscale.resize.timeout", "1");
+        cluster.start(2);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(20);
+        autoscaler.evaluate();
+        assertEquals(3, autoscaler.evaluate());
+        autoscaler.evaluate();
+        assertEquals(3, autoscaler.evaluate());
+        Thread.sleep(1100);
+        autoscaler.evaluate();
+        assertEquals(4, autoscaler.evaluate());
+    }
+
+    /**
+     * 一个替换请求在自动扩容之前就没有分配(例如指定的节点已经满了)，它不应阻塞自动扩容的决策
+     */
+    @Test
+    public void earlierPendingRequestDoesNotBlock() throws InterruptedException {
+        config.setProperty("autoscale.resize.timeout", "60");
+        cluster.handler.resize(3);
+        cluster.allocate(cluster.requested.subList(0, 2));
+        // 保证自动扩缩容的请求时间晚于这个请求
+        Thread.sleep(10);
+        Autoscaler autoscaler = newAutoscaler();
+        load.set(20);
+        autoscaler.evaluate();
+        assertEquals(4, autoscaler.evaluate());
+        cluster.allocate(cluster.requested.subList(1, 2));
+        autoscaler.evaluate();
+        assertEquals(5, autoscaler.evaluate());
+    }
+
+    @Test
+    public void queryLoadPolicy() {
+        config.setProperty("autoscale.memory.high", "0.85");
+        config.setProperty("autoscale.step", "2");
+        QueryLoadPolicy policy = new QueryLoadPolicy();
+        policy.init(config);
+        assertEquals(4, policy.desiredSize(4, Collections.<DrillbitMetrics>emptyList()));
+        // 平均运行加排队查询数
+        assertEquals(6, policy.desiredSize(4, Arrays.asList(metrics(10, 4, 0), metrics(2, 2, 0))));
+        assertEquals(4, policy.desiredSize(4, Arrays.asList(metrics(8, 0, 0), metrics(0, 0, 0))));
+        assertEquals(2, policy.desiredSize(4, Arrays.asList(metrics(0, 0, 0), metrics(1, 0, 0))));
+        // 任何一个drillbit内存使用率过高时扩容，也不会缩容
+        assertEquals(6, policy.desiredSize(4, Arrays.asList(metrics(0, 0, 90), metrics(0, 0, 0))));
+        assertEquals(4, policy.desiredSize(4, Arrays.asList(metrics(0, 0, 85), metrics(0, 0, 0))));
+    }
+
+    /**
+     * heapPercent为堆内存使用的百分比
+     */
+    private static DrillbitMetrics metrics(long running, long queued, long heapPercent) {
+        return new DrillbitMetrics("10.0.0.1", running, queued, heapPercent, 100, 0, 100);
+    }
+
+    /**
+     * 一个没有连接RM和NM的handler，请求记录在requested中，由测试决定分配哪些
+     */
+    private static class Cluster {
+        private final AMRMCallbackHandler handler = new AMRMCallbackHandler();
+        private final List<AMRMClient.ContainerRequest> requested = new ArrayList<>();
+        private int nextHost;
+
+        private Cluster() {
+            AMMetrics metrics = new AMMetrics();
+            handler.setMetrics(metrics);
+            handler.setProfiles(Collections.singletonList(PROFILE));
+            AMRMClientAsync<AMRMClient.ContainerRequest> amrmClientAsync =
+                    AMRMClientAsync.createAMRMClientAsync(AMRMClient.<AMRMClient.ContainerRequest>createAMRMClient(), 500, handler);
+            NMClientAsync nmClientAsync = new NoopNMClientAsync();
+            handler.setAmrmClientAsync(amrmClientAsync);
+            handler.setNmClientAsync(nmClientAsync);
+            handler.setHeartbeatController(new HeartbeatController(amrmClientAsync, new Properties(), 500, metrics));
+            ContainerRequester containerRequester = new ContainerRequester(amrmClientAsync, null, null) {
+                @Override
+                public List<AMRMClient.ContainerRequest> request(DrillbitProfile profile, int count, Set<String> excludedHosts) {
+                    List<AMRMClient.ContainerRequest> containerRequests = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        AMRMClient.ContainerRequest containerRequest = new AMRMClient.ContainerRequest(CAPABILITY,
+                                new String[] {"10.0.0." + nextHost++}, null, PRIORITY, false);
+                        amrmClientAsync.addContainerRequest(containerRequest);
+                        containerRequests.add(containerRequest);
+                    }
+                    requested.addAll(containerRequests);
+                    return containerRequests;
+                }
+            };
+            handler.setContainerRequester(containerRequester);
+            handler.setContainerRecovery(new ContainerRecovery(handler, containerRequester, new Properties(), metrics));
+            handler.setContainerLauncher(new ContainerLauncher(nmClientAsync, handler, null, 1, 1, metrics) {
+                @Override
+                public void launch(Container container, ContainerInfo containerInfo) {
+                }
+            });
+        }
+
+        private void start(int count) {
+            handler.resize(count);
+            allocateAll();
+        }
+
+        private void allocateAll() {
+            allocate(requested);
+        }
+
+        /**
+         * 分配并启动这些请求的Container，没有就绪探测时启动即就绪
+         */
+        private void allocate(List<AMRMClient.ContainerRequest> containerRequests) {
+            List<Container> containers = new ArrayList<>();
+            for (AMRMClient.ContainerRequest containerRequest : containerRequests) {
+                ContainerId containerId = ContainerId.newContainerId(ATTEMPT_ID, ++nextContainerId);
+                containers.add(Container.newInstance(containerId, NodeId.newInstance(containerRequest.getNodes().get(0), 45454),
+                        containerRequest.getNodes().get(0) + ":8042", CAPABILITY, PRIORITY, null));
+            }
+            containerRequests.clear();
+            handler.onContainersAllocated(containers);
+            for (Container container : containers) {
+                handler.onContainerStarted(container.getId());
+            }
+        }
+    }
+
+    private static class NoopNMClientAsync extends NMClientAsync {
+        private NoopNMClientAsync() {
+            super("NoopNMClientAsync", null, null);
+        }
+
+        @Override
+        public void startContainerAsync(Container container, ContainerLaunchContext containerLaunchContext) {
+        }
+
+        @Override
+        public void stopContainerAsync(ContainerId containerId, NodeId nodeId) {
+        }
+
+        @Override
+        public void getContainerStatusAsync(ContainerId containerId, NodeId nodeId) {
+        }
+    }
+}